@@ -11,6 +11,8 @@ import com.beust.jcommander.ParameterException;
 import lombok.Data;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 @Data
 public class BuilderOptions {
@@ -62,6 +64,10 @@ public class BuilderOptions {
     private String librariesLocation = "libraries";
     @Parameter(names = "--objects-url")
     private String objectsLocation = "objects";
+    @Parameter(names = "--libs-mirror")
+    private List<String> librariesMirrors = new ArrayList<String>();
+    @Parameter(names = "--objects-mirror")
+    private List<String> objectsMirrors = new ArrayList<String>();
 
     // Misc
     @Parameter(names = "--pretty-print")
@@ -6,11 +6,10 @@
 
 package com.skcraft.launcher.builder;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.skcraft.launcher.model.modpack.FileInstall;
 import com.skcraft.launcher.model.modpack.Manifest;
+import com.skcraft.launcher.util.FileUtils;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 import org.apache.commons.io.FilenameUtils;
@@ -28,7 +27,6 @@ public class ClientFileCollector extends DirectoryWalker {
     private final Manifest manifest;
     private final PropertiesApplicator applicator;
     private final File destDir;
-    private HashFunction hf = Hashing.sha1();
 
     /**
      * Create a new collector.
@@ -57,7 +55,7 @@ public class ClientFileCollector extends DirectoryWalker {
         }
 
         FileInstall entry = new FileInstall();
-        String hash = Files.hash(file, hf).toString();
+        String hash = FileUtils.getShaHash(file);
         String to = FilenameUtils.separatorsToUnix(FilenameUtils.normalize(relPath));
         
         // url.txt override file
@@ -431,6 +431,12 @@ public class PackageBuilder {
         manifest.setVersion(options.getVersion());
         manifest.setLibrariesLocation(options.getLibrariesLocation());
         manifest.setObjectsLocation(options.getObjectsLocation());
+        if (!options.getLibrariesMirrors().isEmpty()) {
+            manifest.setLibrariesMirrors(options.getLibrariesMirrors());
+        }
+        if (!options.getObjectsMirrors().isEmpty()) {
+            manifest.setObjectsMirrors(options.getObjectsMirrors());
+        }
 
         builder.scan(options.getFilesDir());
         builder.addFiles(options.getFilesDir(), options.getObjectsDir());
@@ -41,6 +41,7 @@ public class Configuration {
     private boolean hideLog = false;
     private String serverHost;
     private String logShow = "True";
+    private int downloadSpeedLimit = 0; // KB/s, 0 for no limit
 
     private int serverPort = 25565;
 
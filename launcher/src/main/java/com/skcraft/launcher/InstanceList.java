@@ -149,9 +149,9 @@ public class InstanceList {
                 URL javaManifestUrl = launcher.getJavaManifestURL();
                 HashMap<String, HashMap<String, JavaManifest[]>> javaManifests = HttpRequest
                         .get(javaManifestUrl)
+                        .useCache()
                         .execute()
                         .expectResponseCode(200)
-                        .returnContent()
                         .asJson(new TypeReference<HashMap<String, HashMap<String, JavaManifest[]>>>() {
                         });
 
@@ -171,9 +171,9 @@ public class InstanceList {
                 URL packagesURL = launcher.getPackagesURL();
                 PackageList packages = HttpRequest
                         .get(packagesURL)
+                        .useCache()
                         .execute()
                         .expectResponseCode(200)
-                        .returnContent()
                         .asJson(PackageList.class);
 
                 if (packages.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
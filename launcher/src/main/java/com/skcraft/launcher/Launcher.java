@@ -19,7 +19,10 @@ import com.skcraft.launcher.model.minecraft.VersionManifest;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.swing.SwingHelper;
 import com.skcraft.launcher.update.UpdateManager;
+import com.skcraft.launcher.util.BandwidthLimiter;
 import com.skcraft.launcher.util.Environment;
+import com.skcraft.launcher.util.HttpCache;
+import com.skcraft.launcher.util.HttpConnectionPool;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SharedLocale;
 import com.skcraft.launcher.util.SimpleLogFormatter;
@@ -63,6 +66,8 @@ public final class Launcher {
     @Getter private final Configuration config;
     @Getter private final AccountList accounts;
     @Getter private final AssetsRoot assets;
+    @Getter private final ObjectStore objectStore;
+    @Getter private final RuntimeStore runtimeStore;
     @Getter private final LaunchSupervisor launchSupervisor = new LaunchSupervisor(this);
     @Getter private final UpdateManager updateManager = new UpdateManager(this);
     @Getter private final InstanceTasks instanceTasks = new InstanceTasks(this);
@@ -91,9 +96,16 @@ public final class Launcher {
 
         this.baseDir = baseDir.getAbsoluteFile();
         this.properties = LauncherUtils.loadProperties(Launcher.class, "launcher.properties", "com.skcraft.launcher.propertiesFile");
+        HttpConnectionPool.setMaxConnectionsPerHost(
+                Integer.parseInt(properties.getProperty("httpMaxConnectionsPerHost", "0")));
+        HttpCache.setDirectory(getHttpCacheDir());
         this.instances = new InstanceList(this);
         this.assets = new AssetsRoot(new File(baseDir, "assets"));
+        this.objectStore = new ObjectStore(new File(getCommonDataDir(), "objects"));
+        File sharedRuntimeDir = getSharedRuntimeDir();
+        this.runtimeStore = sharedRuntimeDir != null ? new RuntimeStore(sharedRuntimeDir) : null;
         this.config = Persistence.load(new File(configDir, "config.json"), Configuration.class);
+        BandwidthLimiter.getGlobal().setRate(config.getDownloadSpeedLimit() * 1024L);
         this.accounts = Persistence.load(new File(configDir, "accounts.dat"), AccountList.class);
 
         setDefaultConfig();
@@ -207,6 +219,15 @@ public final class Launcher {
         return new File(getTemporaryDir(), "install");
     }
 
+    /**
+     * Get the directory to store cached HTTP responses.
+     *
+     * @return the HTTP cache directory
+     */
+    public File getHttpCacheDir() {
+        return new File(getCommonDataDir(), "cache/http");
+    }
+
     /**
      * Get the directory to store temporarily extracted files.
      *
@@ -269,6 +290,34 @@ public final class Launcher {
         return new File(getBaseDir(), "launcher");
     }
 
+    /**
+     * Get the directory to store Java runtimes in that every launcher on
+     * this machine can share. This is the sharedRuntimeDir property if
+     * it is set, where an empty value turns sharing off.
+     *
+     * @return the shared runtime directory, or null if runtimes are not shared
+     */
+    private File getSharedRuntimeDir() {
+        String path = properties.getProperty("sharedRuntimeDir");
+        if (path != null) {
+            return !path.trim().isEmpty() ? new File(path.trim()) : null;
+        }
+
+        String home = System.getProperty("user.home");
+        switch (env.getPlatform()) {
+            case WINDOWS:
+            case WINDOWS_ARM64:
+                String localAppData = System.getenv("LOCALAPPDATA");
+                return new File(localAppData != null ? localAppData : home, "SKCraft/runtimes");
+            case MAC_OS_X:
+            case MAC_OS_X_ARM64:
+                return new File(home, "Library/Application Support/SKCraft/runtimes");
+            default:
+                String dataHome = System.getenv("XDG_DATA_HOME");
+                return new File(dataHome != null ? dataHome : home + "/.local/share", "skcraft/runtimes");
+        }
+    }
+
     /**
      * Get the directory to store common data files.
      *
@@ -0,0 +1,273 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.skcraft.launcher.util.FileUtils;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Represents a launcher-wide directory of modpack files keyed by their
+ * SHA-1 hash. Objects are downloaded once and then placed into each
+ * instance that needs them, either as a hard link or as a copy.
+ * <p/>
+ * Only files that are never written to in place should be hard linked, as
+ * a change to one would change the object and every other instance using
+ * it. Objects are checked against their hash the first time they are used
+ * in a run of the launcher, and corrupt ones are thrown away.
+ * <p/>
+ * Each instance records the objects it uses with
+ * {@link #setReferences(File, Collection)}, and {@link #sweep()} removes
+ * objects that no instance uses any more.
+ */
+@Log
+public class ObjectStore {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long SWEEP_GRACE_PERIOD = 24 * 60 * 60 * 1000L;
+
+    @Getter
+    private final File dir;
+    private final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean supportsLinks = true;
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory to the objects folder
+     */
+    public ObjectStore(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the local path for the object with the given hash.
+     *
+     * @param hash the SHA-1 hash
+     * @return the file, which may not exist
+     */
+    public File getObjectPath(@NonNull String hash) {
+        hash = hash.toLowerCase(Locale.ROOT);
+        return new File(dir, hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash);
+    }
+
+    /**
+     * Check whether the object with the given hash is in the store.
+     *
+     * @param hash the SHA-1 hash
+     * @return true if the object exists
+     */
+    public boolean contains(@NonNull String hash) {
+        hash = hash.toLowerCase(Locale.ROOT);
+        File object = getObjectPath(hash);
+        if (!object.isFile()) {
+            return false;
+        }
+
+        if (verified.contains(hash)) {
+            return true;
+        }
+
+        try {
+            if (FileUtils.getShaHash(object).equalsIgnoreCase(hash)) {
+                verified.add(hash);
+                return true;
+            }
+            log.warning("Object " + hash + " is corrupt, so it will be downloaded again");
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to check object " + hash, e);
+        }
+
+        object.delete();
+        return false;
+    }
+
+    /**
+     * Move a freshly downloaded file into the store. The file must have
+     * been verified against the hash already (as the downloader does when
+     * given a hash) so that a corrupt download never ends up shared between
+     * instances.
+     *
+     * @param hash the SHA-1 hash
+     * @param source the file to move, which is removed afterwards
+     * @throws IOException on I/O error
+     */
+    public void store(@NonNull String hash, @NonNull File source) throws IOException {
+        File dest = getObjectPath(hash);
+
+        if (dest.isFile() && contains(hash)) {
+            source.delete();
+            return;
+        }
+
+        dest.getParentFile().mkdirs();
+
+        try {
+            Files.move(source.toPath(), dest.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // Another task stored the same object in the meantime
+            source.delete();
+            return;
+        }
+
+        verified.add(hash.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Place a stored object at the given location, replacing whatever is
+     * there already.
+     *
+     * @param hash the SHA-1 hash
+     * @param target the target file
+     * @param link true to try a hard link first, false to always copy
+     * @throws IOException on I/O error
+     */
+    public void place(@NonNull String hash, @NonNull File target, boolean link) throws IOException {
+        File object = getObjectPath(hash);
+
+        target.getParentFile().mkdirs();
+        target.delete();
+
+        if (link && supportsLinks) {
+            try {
+                Files.createLink(target.toPath(), object.toPath());
+                return;
+            } catch (UnsupportedOperationException e) {
+                log.log(Level.INFO, "Can't hard link objects, falling back to copying", e);
+                supportsLinks = false;
+            } catch (IOException e) {
+                // Such as the target being locked, which doesn't mean that other links will fail
+                log.log(Level.FINE, "Can't hard link " + target + ", copying it instead", e);
+            }
+        }
+
+        Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Record the objects that an instance uses, replacing what was recorded
+     * for it before.
+     *
+     * @param owner the instance directory
+     * @param hashes the SHA-1 hashes of the objects
+     * @throws IOException on I/O error
+     */
+    public void setReferences(@NonNull File owner, @NonNull Collection<String> hashes) throws IOException {
+        References refs = new References();
+        refs.setOwner(owner.getAbsolutePath());
+        for (String hash : hashes) {
+            refs.getObjects().add(hash.toLowerCase(Locale.ROOT));
+        }
+
+        File refsFile = getReferencesFile(owner);
+        refsFile.getParentFile().mkdirs();
+        mapper.writeValue(refsFile, refs);
+    }
+
+    /**
+     * Remove the objects that no instance uses any more. References of
+     * instances that have been deleted no longer count. Objects that were
+     * stored recently are kept, as an update that is still running may be
+     * about to use them.
+     */
+    public synchronized void sweep() {
+        Set<String> used = new HashSet<String>();
+        File[] refsFiles = new File(dir, "references").listFiles();
+        if (refsFiles == null) {
+            return;
+        }
+
+        for (File refsFile : refsFiles) {
+            try {
+                References refs = mapper.readValue(refsFile, References.class);
+                if (refs.getOwner() != null && new File(refs.getOwner()).isDirectory()) {
+                    used.addAll(refs.getObjects());
+                } else {
+                    refsFile.delete();
+                }
+            } catch (IOException e) {
+                // We can't know what it refers to, so don't remove anything
+                log.log(Level.WARNING, "Failed to read object references from " + refsFile, e);
+                return;
+            }
+        }
+
+        long cutoff = System.currentTimeMillis() - SWEEP_GRACE_PERIOD;
+        int removed = 0;
+        for (File first : listDirs(dir)) {
+            if (first.getName().length() != 2) {
+                continue;
+            }
+            for (File second : listDirs(first)) {
+                File[] objects = second.listFiles();
+                if (objects == null) {
+                    continue;
+                }
+                for (File object : objects) {
+                    String hash = object.getName().toLowerCase(Locale.ROOT);
+                    if (!used.contains(hash) && object.lastModified() < cutoff && object.delete()) {
+                        verified.remove(hash);
+                        removed++;
+                    }
+                }
+                second.delete(); // Only if empty
+            }
+            first.delete(); // Only if empty
+        }
+
+        if (removed > 0) {
+            log.info("Removed " + removed + " object(s) that are no longer used by any instance");
+        }
+    }
+
+    private File getReferencesFile(File owner) {
+        String key = Hashing.sha1().hashString(owner.getAbsolutePath(), Charsets.UTF_8).toString();
+        return new File(dir, "references/" + key + ".json");
+    }
+
+    private static File[] listDirs(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        List<File> dirs = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                dirs.add(file);
+            }
+        }
+        return dirs.toArray(new File[dirs.size()]);
+    }
+
+    @Data
+    public static class References {
+        private String owner;
+        private Set<String> objects = new HashSet<String>();
+    }
+
+}
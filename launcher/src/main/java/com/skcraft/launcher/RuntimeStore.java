@@ -0,0 +1,298 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Represents a directory of Java runtimes shared by every launcher on the
+ * machine, keyed by runtime component, OS and the hash of the runtime's
+ * manifest. Once a runtime has been installed by one launcher, the others
+ * get it by hard linking its files instead of downloading it again.
+ * <p/>
+ * Every launcher base directory that uses a runtime is recorded as a
+ * reference to it, and a runtime is removed from the store once nothing
+ * refers to it any more. A launcher only refers to one version of each
+ * runtime component at a time. As runtimes are linked file by file, a
+ * launcher's copy keeps working even if the store removes its own.
+ */
+@Log
+public class RuntimeStore {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Getter
+    private final File dir;
+    private volatile boolean supportsLinks = true;
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory to the store
+     */
+    public RuntimeStore(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the directory of a runtime in the store.
+     *
+     * @param component the runtime component
+     * @param os the Mojang OS name
+     * @param hash the SHA-1 hash of the runtime's manifest
+     * @return the directory, which may not exist
+     */
+    public File getRuntimeDir(@NonNull String component, @NonNull String os, @NonNull String hash) {
+        return new File(getComponentDir(component, os), hash.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Check whether a runtime is in the store. Runtimes are only moved into
+     * place once complete, so one that exists can be used.
+     *
+     * @param component the runtime component
+     * @param os the Mojang OS name
+     * @param hash the SHA-1 hash of the runtime's manifest
+     * @return true if the runtime exists
+     */
+    public boolean contains(@NonNull String component, @NonNull String os, @NonNull String hash) {
+        return getRuntimeDir(component, os, hash).isDirectory();
+    }
+
+    /**
+     * Replace a launcher's runtime directory with a runtime from the store,
+     * and record the launcher as using it. The runtime is put together next
+     * to the directory and then swapped in, so if the directory can't be
+     * replaced (such as when a running game has files open in it), it is
+     * left as it was.
+     *
+     * @param component the runtime component
+     * @param os the Mojang OS name
+     * @param hash the SHA-1 hash of the runtime's manifest
+     * @param target the launcher's runtime directory
+     * @param owner the launcher's base directory
+     * @throws IOException on I/O error, in which case the directory is unchanged
+     */
+    public void place(@NonNull String component, @NonNull String os, @NonNull String hash,
+                      @NonNull File target, @NonNull File owner) throws IOException {
+        FileLock lock = lock(component, os);
+        try {
+            File source = getRuntimeDir(component, os, hash);
+            if (!source.isDirectory()) {
+                throw new IOException("The runtime " + source + " is not in the store");
+            }
+
+            String suffix = "." + UUID.randomUUID();
+            File tempDir = new File(target.getParentFile(), target.getName() + suffix + ".tmp");
+            File oldDir = new File(target.getParentFile(), target.getName() + suffix + ".old");
+            try {
+                link(source, tempDir);
+                if (target.exists()) {
+                    Files.move(target.toPath(), oldDir.toPath());
+                }
+                try {
+                    Files.move(tempDir.toPath(), target.toPath());
+                } catch (IOException e) {
+                    if (oldDir.exists()) {
+                        Files.move(oldDir.toPath(), target.toPath());
+                    }
+                    throw e;
+                }
+            } finally {
+                if (tempDir.exists()) {
+                    FileUtils.deleteDirectory(tempDir);
+                }
+            }
+
+            if (oldDir.exists()) {
+                try {
+                    FileUtils.deleteDirectory(oldDir);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to remove the old runtime in " + oldDir, e);
+                }
+            }
+            addReference(component, os, hash, owner);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Put a runtime that a launcher has just installed into the store, if
+     * it isn't there already, and record the launcher as using it.
+     *
+     * @param component the runtime component
+     * @param os the Mojang OS name
+     * @param hash the SHA-1 hash of the runtime's manifest
+     * @param source the launcher's runtime directory
+     * @param owner the launcher's base directory
+     * @throws IOException on I/O error
+     */
+    public void publish(@NonNull String component, @NonNull String os, @NonNull String hash,
+                        @NonNull File source, @NonNull File owner) throws IOException {
+        FileLock lock = lock(component, os);
+        try {
+            File dest = getRuntimeDir(component, os, hash);
+            if (!dest.isDirectory()) {
+                File tempDir = new File(dest.getParentFile(), dest.getName() + "." + UUID.randomUUID() + ".tmp");
+                try {
+                    link(source, tempDir);
+                    Files.move(tempDir.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    log.info("Added " + component + " (" + hash + ") to the shared runtimes");
+                } finally {
+                    if (tempDir.exists()) {
+                        FileUtils.deleteDirectory(tempDir);
+                    }
+                }
+            }
+
+            addReference(component, os, hash, owner);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Record that a launcher uses the given runtime instead of any other
+     * version of it, and remove versions that are no longer used by any
+     * launcher. Launchers whose base directory is gone no longer count.
+     */
+    private void addReference(String component, String os, String hash, File owner) throws IOException {
+        File refsFile = new File(getComponentDir(component, os), "references.json");
+        References refs = refsFile.exists() ? mapper.readValue(refsFile, References.class) : new References();
+        String ownerPath = owner.getAbsolutePath();
+        hash = hash.toLowerCase(Locale.ROOT);
+
+        for (Set<String> owners : refs.getRuntimes().values()) {
+            owners.remove(ownerPath);
+            for (Iterator<String> it = owners.iterator(); it.hasNext(); ) {
+                if (!new File(it.next()).isDirectory()) {
+                    it.remove();
+                }
+            }
+        }
+
+        Set<String> owners = refs.getRuntimes().get(hash);
+        if (owners == null) {
+            owners = new HashSet<String>();
+            refs.getRuntimes().put(hash, owners);
+        }
+        owners.add(ownerPath);
+
+        for (Iterator<Map.Entry<String, Set<String>>> it = refs.getRuntimes().entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Set<String>> entry = it.next();
+            if (entry.getValue().isEmpty()) {
+                log.info("Removing " + component + " (" + entry.getKey() + ") from the shared runtimes");
+                try {
+                    FileUtils.deleteDirectory(getRuntimeDir(component, os, entry.getKey()));
+                    it.remove();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to remove unused runtime", e);
+                }
+            }
+        }
+
+        mapper.writeValue(refsFile, refs);
+    }
+
+    /**
+     * Recreate a directory tree with hard links to the files in it, or
+     * copies where hard links aren't possible.
+     */
+    private void link(File source, File target) throws IOException {
+        final Path sourcePath = source.toPath();
+        final Path targetPath = target.toPath();
+
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(targetPath.resolve(sourcePath.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path dest = targetPath.resolve(sourcePath.relativize(file).toString());
+                if (supportsLinks) {
+                    try {
+                        Files.createLink(dest, file);
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException e) {
+                        log.log(Level.INFO, "Can't hard link runtime files, falling back to copying", e);
+                        supportsLinks = false;
+                    } catch (IOException e) {
+                        // Such as the file being locked, which doesn't mean that other links will fail
+                        log.log(Level.FINE, "Can't hard link " + dest + ", copying it instead", e);
+                    }
+                }
+
+                Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Lock a runtime component against changes by other launchers, which
+     * may be running in other processes.
+     */
+    private FileLock lock(String component, String os) throws IOException {
+        File componentDir = getComponentDir(component, os);
+        componentDir.mkdirs();
+        FileChannel channel = FileChannel.open(new File(componentDir, ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void release(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    private File getComponentDir(String component, String os) {
+        return new File(dir, component + "/" + os);
+    }
+
+    @Data
+    public static class References {
+        private Map<String, Set<String>> runtimes = new HashMap<String, Set<String>>();
+    }
+
+}
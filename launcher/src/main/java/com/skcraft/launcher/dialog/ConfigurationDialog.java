@@ -13,6 +13,7 @@ import com.skcraft.launcher.launch.runtime.JavaRuntime;
 import com.skcraft.launcher.launch.runtime.JavaRuntimeFinder;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.swing.*;
+import com.skcraft.launcher.util.BandwidthLimiter;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.NonNull;
 
@@ -44,6 +45,8 @@ public class ConfigurationDialog extends JDialog {
     private final FormPanel gameSettingsPanel = new FormPanel();
     private final JSpinner widthSpinner = new JSpinner();
     private final JSpinner heightSpinner = new JSpinner();
+    private final FormPanel downloadsPanel = new FormPanel();
+    private final JSpinner downloadSpeedLimitSpinner = new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 128));
     private final FormPanel proxySettingsPanel = new FormPanel();
     private final JCheckBox useProxyCheck = new JCheckBox(SharedLocale.tr("options.useProxyCheck"));
     private final JTextField proxyHostText = new JTextField();
@@ -98,6 +101,7 @@ public class ConfigurationDialog extends JDialog {
         mapper.map(heightSpinner, "windowHeight");
         mapper.map(logShow, "logShow");
         mapper.map(gameKeyText, "gameKey");
+        mapper.map(downloadSpeedLimitSpinner, "downloadSpeedLimit");
         mapper.copyFromObject();
     }
 
@@ -110,6 +114,10 @@ public class ConfigurationDialog extends JDialog {
         SwingHelper.removeOpaqueness(gameSettingsPanel);
         tabbedPane.addTab(SharedLocale.tr("options.minecraftTab"), SwingHelper.alignTabbedPane(gameSettingsPanel));
 
+        downloadsPanel.addRow(new JLabel(SharedLocale.tr("options.downloadSpeedLimit")), downloadSpeedLimitSpinner);
+        SwingHelper.removeOpaqueness(downloadsPanel);
+        tabbedPane.addTab(SharedLocale.tr("options.downloadsTab"), SwingHelper.alignTabbedPane(downloadsPanel));
+
         buttonsPanel.addElement(logButton);
         buttonsPanel.addElement(aboutButton);
         buttonsPanel.addGlue();
@@ -175,6 +183,7 @@ public class ConfigurationDialog extends JDialog {
     public void save() {
         mapper.copyFromSwing();
         config.setJavaRuntime((JavaRuntime) jvmRuntime.getSelectedItem());
+        BandwidthLimiter.getGlobal().setRate(config.getDownloadSpeedLimit() * 1024L);
         Persistence.commitAndForget(config);
         dispose();
     }
@@ -0,0 +1,147 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops requests from being made to a host that appears to be down.
+ * <p/>
+ * After a number of requests to a host fail in a row without getting a
+ * response (or with a 5xx or 429 response), no more requests are allowed
+ * to it for a while, so that downloads fail at once or move on to another
+ * mirror rather than each waiting for their own attempts to time out.
+ * Once that time has passed, one request is let through, and depending on
+ * how it goes, the host is either allowed again or shut off for longer.
+ */
+@Log
+public class CircuitBreaker {
+
+    private final int threshold;
+    private final long openTime;
+    private final long maxOpenTime;
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+    /**
+     * Create a new circuit breaker that opens after 5 failures for 30 seconds
+     * at first, and up to 5 minutes.
+     */
+    public CircuitBreaker() {
+        this(5, 30 * 1000, 5 * 60 * 1000);
+    }
+
+    /**
+     * Create a new circuit breaker.
+     *
+     * @param threshold the number of failures in a row after which a host is shut off
+     * @param openTime how long a host is shut off for at first, in milliseconds
+     * @param maxOpenTime the longest a host is shut off for, in milliseconds
+     */
+    public CircuitBreaker(int threshold, long openTime, long maxOpenTime) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+        this.maxOpenTime = Math.max(openTime, maxOpenTime);
+    }
+
+    /**
+     * Check whether a request may be made to the host of a URL. When the
+     * host has been shut off long enough, this returns true once so that
+     * a single trial request can be made, and the host stays shut off for
+     * everything else until the trial has succeeded.
+     *
+     * @param url the URL
+     * @return true if the request may be made
+     */
+    public synchronized boolean allowRequest(@NonNull URL url) {
+        Circuit circuit = getCircuit(url);
+        long now = System.currentTimeMillis();
+        if (circuit.openUntil == 0) {
+            return true;
+        } else if (now < circuit.openUntil) {
+            return false;
+        }
+
+        // If the trial never reports back, another one is let through later
+        circuit.trial = true;
+        circuit.openUntil = now + circuit.openTime;
+        return true;
+    }
+
+    /**
+     * Check whether the host of a URL is shut off, without taking up the
+     * trial request.
+     *
+     * @param url the URL
+     * @return true if requests to the host are not allowed
+     */
+    public synchronized boolean isOpen(@NonNull URL url) {
+        Circuit circuit = getCircuit(url);
+        return circuit.openUntil != 0 && System.currentTimeMillis() < circuit.openUntil;
+    }
+
+    /**
+     * Record that a host has responded.
+     *
+     * @param url the URL
+     */
+    public synchronized void recordSuccess(@NonNull URL url) {
+        Circuit circuit = getCircuit(url);
+        if (circuit.openUntil != 0) {
+            log.info("Requests to " + url.getHost() + " are working again");
+        }
+        circuit.failures = 0;
+        circuit.openUntil = 0;
+        circuit.openTime = openTime;
+        circuit.trial = false;
+    }
+
+    /**
+     * Record that a request to a host failed because of the host.
+     *
+     * @param url the URL
+     */
+    public synchronized void recordFailure(@NonNull URL url) {
+        Circuit circuit = getCircuit(url);
+        circuit.failures++;
+
+        if (circuit.trial) {
+            // The trial request failed, so wait longer this time
+            circuit.openTime = Math.min(maxOpenTime, circuit.openTime * 2);
+        } else if (circuit.openUntil != 0 || circuit.failures < threshold) {
+            // Requests that were already running when it was shut off don't count
+            return;
+        }
+
+        circuit.openUntil = System.currentTimeMillis() + circuit.openTime;
+        circuit.trial = false;
+        log.warning(String.format("Not making requests to %s for %d seconds after %d failures in a row",
+                url.getHost(), circuit.openTime / 1000, circuit.failures));
+    }
+
+    private Circuit getCircuit(URL url) {
+        Circuit circuit = circuits.get(url.getHost());
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuit.openTime = openTime;
+            circuits.put(url.getHost(), circuit);
+        }
+        return circuit;
+    }
+
+    private static class Circuit {
+        private int failures;
+        private long openUntil;
+        private long openTime;
+        private boolean trial;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.base.Strings;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records how far each download in the installer's temporary directory
+ * got, so that downloads cut off by the launcher closing can carry on
+ * from where they were the next time instead of starting over.
+ */
+@Data
+public class DownloadJournal {
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Read the journal from a file.
+     *
+     * @param file the file
+     * @return the journal, which is empty if the file doesn't exist or is unreadable
+     */
+    public static DownloadJournal load(@NonNull File file) {
+        return Persistence.read(file, DownloadJournal.class);
+    }
+
+    /**
+     * Write the journal to a file. The file is replaced in one step so
+     * that it is never left half written.
+     *
+     * @param file the file
+     * @throws IOException on I/O error
+     */
+    public synchronized void save(@NonNull File file) throws IOException {
+        if (entries.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Persistence.write(tempFile, this);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forget about every download except the given ones.
+     *
+     * @param keys the keys to keep
+     */
+    public synchronized void retain(Collection<String> keys) {
+        entries.keySet().retainAll(keys);
+    }
+
+    @Data
+    public static class Entry {
+        private List<String> urls = new ArrayList<String>();
+        private long size;
+        private String hash;
+        private String validator;
+        private long length = -1;
+        private long written;
+        private List<Range> segments;
+
+        /**
+         * Check whether this entry was made for the same download.
+         *
+         * @param urls the URLs
+         * @param size the expected size
+         * @param hash the expected hash, or null
+         * @return true if it matches
+         */
+        public boolean matches(List<URL> urls, long size, String hash) {
+            Set<String> expected = new HashSet<String>();
+            for (URL url : urls) {
+                expected.add(url.toExternalForm());
+            }
+            return this.size == size
+                    && Strings.nullToEmpty(this.hash).equalsIgnoreCase(Strings.nullToEmpty(hash))
+                    && expected.equals(new HashSet<String>(this.urls));
+        }
+    }
+
+    @Data
+    public static class Range {
+        private long start;
+        private long end;
+        private long done;
+    }
+
+}
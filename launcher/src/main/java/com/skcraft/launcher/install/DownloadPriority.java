@@ -0,0 +1,42 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+/**
+ * How soon a download should start compared to the others queued with the
+ * same {@link Downloader}. Within the same priority, larger files start
+ * first so that they don't end up finishing long after everything else.
+ */
+public enum DownloadPriority {
+
+    /**
+     * Files that are needed to launch the game at all, such as the
+     * runtime, the game itself and its libraries.
+     */
+    CRITICAL,
+
+    /**
+     * Everything that isn't otherwise tagged.
+     */
+    NORMAL,
+
+    /**
+     * Files that the game can do without for a while, such as assets.
+     */
+    BACKGROUND;
+
+    /**
+     * Get the more urgent of this priority and another.
+     *
+     * @param other the other priority
+     * @return the more urgent priority
+     */
+    public DownloadPriority max(DownloadPriority other) {
+        return other.ordinal() < ordinal() ? other : this;
+    }
+
+}
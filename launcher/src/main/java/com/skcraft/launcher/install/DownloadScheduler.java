@@ -0,0 +1,337 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.extern.java.Log;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import static com.skcraft.launcher.util.SharedLocale.tr;
+
+/**
+ * Decides when queued downloads of a {@link HttpDownloader} may start.
+ * <p/>
+ * Every host gets its own concurrency limit, which starts at the
+ * downloader's thread count, grows by one whenever the throughput from
+ * that host went up since the last sample, and is halved (at most once
+ * per sample) when the host fails a request or asks us to slow down.
+ * Large files are kept in a separate lane with a fixed number of slots so
+ * that they can't take up every connection while thousands of small files
+ * are waiting. A file that is downloaded in segments counts against its
+ * host's limit once for each connection it opens.
+ * <p/>
+ * Whenever a slot frees up, the job with the most urgent
+ * {@link DownloadPriority} that is allowed to start is picked, and among
+ * those, the largest, so that the longest downloads aren't left until last.
+ * A job that has to wait before its sources can be tried again gives up
+ * its slot and is only let through again once that time has come.
+ */
+@Log
+class DownloadScheduler {
+
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final double GROWTH_THRESHOLD = 1.05;
+    private static final Comparator<HttpDownloader.HttpDownloadJob> ORDER = new Comparator<HttpDownloader.HttpDownloadJob>() {
+        @Override
+        public int compare(HttpDownloader.HttpDownloadJob o1, HttpDownloader.HttpDownloadJob o2) {
+            int result = o1.getPriority().compareTo(o2.getPriority());
+            if (result == 0) {
+                result = Long.compare(o2.getSize(), o1.getSize());
+            }
+            if (result == 0) {
+                result = Integer.compare(o1.getSequence(), o2.getSequence());
+            }
+            return result;
+        }
+    };
+
+    private final int initialLimit;
+    private final int maxLimit;
+    private final int largeLaneLimit;
+    private final long largeFileThreshold;
+
+    private final Map<String, Queue<HttpDownloader.HttpDownloadJob>> smallLane =
+            new LinkedHashMap<String, Queue<HttpDownloader.HttpDownloadJob>>();
+    private final Map<String, Queue<HttpDownloader.HttpDownloadJob>> largeLane =
+            new LinkedHashMap<String, Queue<HttpDownloader.HttpDownloadJob>>();
+    private final Map<String, HostLimit> hosts = new LinkedHashMap<String, HostLimit>();
+    private final Queue<HttpDownloader.HttpDownloadJob> waiting = new PriorityQueue<HttpDownloader.HttpDownloadJob>(
+            11, new Comparator<HttpDownloader.HttpDownloadJob>() {
+        @Override
+        public int compare(HttpDownloader.HttpDownloadJob o1, HttpDownloader.HttpDownloadJob o2) {
+            return Long.compare(o1.getRetryAt(), o2.getRetryAt());
+        }
+    });
+    private int pending;
+    private int active;
+    private int largeActive;
+    private boolean closed;
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param initialLimit the number of concurrent downloads to start with per host
+     * @param maxLimit the most concurrent downloads to ever make to one host
+     * @param largeLaneLimit the number of large files to download at once
+     * @param largeFileThreshold the size in bytes from which a file is large
+     */
+    DownloadScheduler(int initialLimit, int maxLimit, int largeLaneLimit, long largeFileThreshold) {
+        this.initialLimit = Math.max(1, initialLimit);
+        this.maxLimit = Math.max(this.initialLimit, maxLimit);
+        this.largeLaneLimit = Math.max(1, largeLaneLimit);
+        this.largeFileThreshold = largeFileThreshold;
+    }
+
+    /**
+     * Add a job to its lane.
+     *
+     * @param job the job
+     */
+    synchronized void add(HttpDownloader.HttpDownloadJob job) {
+        enqueue(job);
+        pending++;
+        notifyAll();
+    }
+
+    private void enqueue(HttpDownloader.HttpDownloadJob job) {
+        Map<String, Queue<HttpDownloader.HttpDownloadJob>> lane = isLarge(job) ? largeLane : smallLane;
+        Queue<HttpDownloader.HttpDownloadJob> jobs = lane.get(job.getHost());
+        if (jobs == null) {
+            jobs = new PriorityQueue<HttpDownloader.HttpDownloadJob>(11, ORDER);
+            lane.put(job.getHost(), jobs);
+        }
+        jobs.add(job);
+        getLimit(job.getHost());
+    }
+
+    /**
+     * Add several jobs at once, so that none of them is started before the
+     * others have been added.
+     *
+     * @param jobs the jobs
+     */
+    synchronized void addAll(Collection<HttpDownloader.HttpDownloadJob> jobs) {
+        for (HttpDownloader.HttpDownloadJob job : jobs) {
+            add(job);
+        }
+    }
+
+    /**
+     * Mark that no more jobs will be added, so that {@link #next()} stops
+     * waiting for more once every job has been taken.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until a job is allowed to start and take it off its lane.
+     * The most urgent job of either lane is picked, where the large lane
+     * is only considered while it has a free slot. Until the scheduler is
+     * closed and every job has finished, this also waits for more jobs to
+     * be added or to come back through {@link #retryLater(HttpDownloader.HttpDownloadJob)}.
+     *
+     * @return the job, or null if there are no more jobs
+     * @throws InterruptedException thrown on interruption
+     */
+    synchronized HttpDownloader.HttpDownloadJob next() throws InterruptedException {
+        while (pending > 0 || active > 0 || !closed) {
+            long now = System.currentTimeMillis();
+            while (!waiting.isEmpty() && waiting.peek().getRetryAt() <= now) {
+                enqueue(waiting.poll());
+            }
+
+            Queue<HttpDownloader.HttpDownloadJob> jobs = largeActive < largeLaneLimit ? peek(largeLane) : null;
+            Queue<HttpDownloader.HttpDownloadJob> smallJobs = peek(smallLane);
+            if (jobs == null || (smallJobs != null && ORDER.compare(smallJobs.peek(), jobs.peek()) < 0)) {
+                jobs = smallJobs;
+            }
+
+            if (jobs != null) {
+                HttpDownloader.HttpDownloadJob job = jobs.poll();
+                pending--;
+                active++;
+                getLimit(job.getHost()).active += job.getConnections();
+                if (isLarge(job)) {
+                    largeActive++;
+                }
+                return job;
+            }
+
+            if (waiting.isEmpty()) {
+                wait();
+            } else {
+                wait(Math.max(1, waiting.peek().getRetryAt() - now));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the host in a lane whose next job is the most urgent of those
+     * that are allowed to start.
+     *
+     * @return the jobs of that host, or null if no job can start
+     */
+    private Queue<HttpDownloader.HttpDownloadJob> peek(Map<String, Queue<HttpDownloader.HttpDownloadJob>> lane) {
+        Queue<HttpDownloader.HttpDownloadJob> best = null;
+        for (Map.Entry<String, Queue<HttpDownloader.HttpDownloadJob>> entry : lane.entrySet()) {
+            Queue<HttpDownloader.HttpDownloadJob> jobs = entry.getValue();
+            HostLimit host = getLimit(entry.getKey());
+            if (!jobs.isEmpty() && host.canStart(jobs.peek())
+                    && (best == null || ORDER.compare(jobs.peek(), best.peek()) < 0)) {
+                best = jobs;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Free the slot taken by a job that has finished, successfully or not.
+     *
+     * @param job the job
+     * @param bytes the number of bytes downloaded, or 0 if the job failed
+     */
+    synchronized void release(HttpDownloader.HttpDownloadJob job, long bytes) {
+        HostLimit host = getLimit(job.getHost());
+        host.active -= job.getConnections();
+        active--;
+        if (isLarge(job)) {
+            largeActive--;
+        }
+        if (bytes > 0) {
+            host.sample(bytes);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Free the slot taken by a job that has to wait before it can carry on,
+     * and let it through again once {@link HttpDownloader.HttpDownloadJob#getRetryAt()}
+     * has passed.
+     *
+     * @param job the job
+     */
+    synchronized void retryLater(HttpDownloader.HttpDownloadJob job) {
+        release(job, 0);
+        waiting.add(job);
+        pending++;
+    }
+
+    /**
+     * Record that a request to a host failed in a way that suggests the
+     * host is overloaded, which halves its limit.
+     *
+     * @param hostName the host
+     * @param responseCode the response code, or -1 if no response was received
+     */
+    synchronized void backOff(String hostName, int responseCode) {
+        HostLimit host = getLimit(hostName);
+
+        // Failures tend to come in bursts, so only count one per sample
+        if (System.currentTimeMillis() - host.lastBackOff < SAMPLE_INTERVAL) {
+            return;
+        }
+
+        int limit = Math.max(1, host.limit / 2);
+        if (limit < host.limit) {
+            log.info(String.format("Lowering concurrent downloads from %s to %d (response code %d)",
+                    hostName, limit, responseCode));
+        }
+        host.limit = limit;
+        host.lastBackOff = System.currentTimeMillis();
+        host.resetSample();
+    }
+
+    /**
+     * Get a line for each host that is being downloaded from, with the
+     * number of active downloads and the current limit.
+     *
+     * @return the status
+     */
+    synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, HostLimit> entry : hosts.entrySet()) {
+            HostLimit host = entry.getValue();
+            if (host.active > 0) {
+                builder.append("\n");
+                builder.append(tr("downloader.hostLimit", entry.getKey(), host.active, host.limit));
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean isLarge(HttpDownloader.HttpDownloadJob job) {
+        return job.getSize() >= largeFileThreshold;
+    }
+
+    private HostLimit getLimit(String hostName) {
+        HostLimit host = hosts.get(hostName);
+        if (host == null) {
+            host = new HostLimit(hostName, initialLimit);
+            hosts.put(hostName, host);
+        }
+        return host;
+    }
+
+    private class HostLimit {
+        private final String name;
+        private int limit;
+        private int active;
+        private long sampleStart = System.currentTimeMillis();
+        private long sampleBytes;
+        private double lastThroughput;
+        private long lastBackOff;
+
+        private HostLimit(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        /**
+         * Check whether there are enough free connections for a job, where
+         * a job that needs more than the limit may start on its own.
+         */
+        private boolean canStart(HttpDownloader.HttpDownloadJob job) {
+            return active == 0 || active + job.getConnections() <= limit;
+        }
+
+        private void sample(long bytes) {
+            sampleBytes += bytes;
+            long now = System.currentTimeMillis();
+            long elapsed = now - sampleStart;
+            if (elapsed < SAMPLE_INTERVAL) {
+                return;
+            }
+
+            double throughput = sampleBytes * 1000.0 / elapsed;
+            if (throughput > lastThroughput * GROWTH_THRESHOLD && limit < maxLimit && active >= limit - 1) {
+                limit++;
+                log.fine(String.format("Raising concurrent downloads from %s to %d (%.0f KB/s)",
+                        name, limit, throughput / 1024));
+            }
+
+            lastThroughput = throughput;
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+
+        private void resetSample() {
+            sampleStart = System.currentTimeMillis();
+            sampleBytes = 0;
+            lastThroughput = 0;
+        }
+    }
+
+}
@@ -17,5 +17,13 @@ public interface Downloader extends ProgressObservable {
 
     File download(List<URL> urls, String key, long size, String name);
 
+    File download(List<URL> urls, String key, long size, String name, String hash);
+
+    File download(List<URL> urls, String key, long size, String name, String hash, DownloadPriority priority);
+
     File download(URL url, String key, long size, String name);
+
+    File download(URL url, String key, long size, String name, String hash);
+
+    File download(URL url, String key, long size, String name, String hash, DownloadPriority priority);
 }
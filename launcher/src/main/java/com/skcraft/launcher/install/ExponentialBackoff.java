@@ -0,0 +1,67 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Random;
+
+/**
+ * Waits twice as long after every failed attempt, up to a maximum, with a
+ * random part so that many downloads failing at once don't all come back
+ * at the same moment.
+ * <p/>
+ * A delay asked for with Retry-After is used instead, unless it is longer
+ * than the maximum, in which case the source is given up on so that
+ * another mirror can be used. Client errors other than 408 Request
+ * Timeout and 429 Too Many Requests are not retried, as asking again
+ * won't change the answer.
+ */
+public class ExponentialBackoff implements RetryPolicy {
+
+    private final Random random = new Random();
+    @Getter private final int maxAttempts;
+    @Getter private final long initialDelay;
+    @Getter private final long maxDelay;
+
+    /**
+     * Create a new policy.
+     *
+     * @param maxAttempts the number of attempts to make to a source
+     * @param initialDelay the delay after the first failure, in milliseconds
+     * @param maxDelay the longest delay, in milliseconds
+     */
+    public ExponentialBackoff(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+    }
+
+    @Override
+    public long getRetryDelay(@NonNull Failure failure) {
+        if (failure.getAttempt() >= maxAttempts) {
+            return -1;
+        }
+
+        int code = failure.getResponseCode();
+        if (code >= 400 && code < 500 && code != 408 && code != 429) {
+            return -1;
+        }
+
+        if (failure.getRetryAfter() >= 0) {
+            return failure.getRetryAfter() <= maxDelay ? failure.getRetryAfter() : -1;
+        }
+
+        long delay = initialDelay << Math.min(30, failure.getAttempt() - 1);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+}
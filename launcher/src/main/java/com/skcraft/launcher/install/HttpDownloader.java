@@ -14,20 +14,46 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.util.BandwidthLimiter;
+import com.skcraft.launcher.util.FileUtils;
+import com.skcraft.launcher.util.HttpConnectionPool;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SharedLocale;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.extern.java.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -35,30 +61,55 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class HttpDownloader implements Downloader {
 
-    private final Random random = new Random();
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 2000;
+
     private final HashFunction hf = Hashing.sha1();
 
     private final File tempDir;
+    private final File journalFile;
     @Getter @Setter private int threadCount = 6;
-    @Getter @Setter private int retryDelay = 2000;
-    @Getter @Setter private int tryCount = 3;
+    @Getter @Setter private int maxThreadCount = HttpConnectionPool.getMaxConnectionsPerHost();
+    @Getter @Setter private int largeFileThreadCount = 2;
+    @Getter @Setter private long largeFileThreshold = 8 * 1024 * 1024;
+    @Getter @Setter private long segmentThreshold = 16 * 1024 * 1024;
+    @Getter @Setter private int segmentCount = 4;
+    @Getter @Setter @NonNull private RetryPolicy retryPolicy = new ExponentialBackoff(3, 2000, 30000);
+    @Getter @Setter @NonNull private CircuitBreaker circuitBreaker = new CircuitBreaker();
+    @Getter @Setter private volatile Callback<File> completionListener;
+    @Getter @Setter @NonNull private MirrorManager mirrors = new MirrorManager();
+    @Getter private long jobRateLimit;
 
     private List<HttpDownloadJob> queue = new ArrayList<HttpDownloadJob>();
     private final Set<String> usedKeys = new HashSet<String>();
+    private final Map<String, HttpDownloadJob> jobsByContent = new HashMap<String, HttpDownloadJob>();
+    private int coalesced = 0;
 
     private final List<HttpDownloadJob> running = new ArrayList<HttpDownloadJob>();
     private final List<HttpDownloadJob> failed = new ArrayList<HttpDownloadJob>();
+    private DownloadScheduler scheduler;
+    private ListeningExecutorService executor;
+    private ExecutorService hedgeExecutor;
+    private ScheduledExecutorService checkpointer;
+    private Future<?> dispatcher;
+    private final List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+    private DownloadJournal journal = new DownloadJournal();
     private long downloaded = 0;
     private long total = 0;
     private int left = 0;
 
     /**
      * Create a new downloader using the given executor.
+     * <p/>
+     * Downloaders that share a temporary directory must each use a
+     * different journal name, or they will overwrite each other's journal.
      *
      * @param tempDir the temporary directory
+     * @param journalName the name of the journal to resume downloads from
      */
-    public HttpDownloader(@NonNull File tempDir) {
+    public HttpDownloader(@NonNull File tempDir, @NonNull String journalName) {
         this.tempDir = tempDir;
+        this.journalFile = new File(tempDir, "journal-" + journalName + ".json");
     }
 
     /**
@@ -78,31 +129,129 @@ public class HttpDownloader implements Downloader {
     }
 
     @Override
-    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+    public File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+        return download(urls, key, size, name, null);
+    }
+
+    @Override
+    public File download(@NonNull List<URL> urls, @NonNull String key, long size, String name, String hash) {
+        return download(urls, key, size, name, hash, DownloadPriority.NORMAL);
+    }
+
+    @Override
+    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name, String hash,
+                                      @NonNull DownloadPriority priority) {
         if (urls.isEmpty()) {
             throw new IllegalArgumentException("Can't download empty list of URLs");
         }
 
-        String hash = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
-        hash = createUniqueKey(hash);
-        File tempFile = new File(tempDir, hash.substring(0, 2) + "/" + hash);
+        String id = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
+        id = createUniqueKey(id);
+        File tempFile = new File(tempDir, id.substring(0, 2) + "/" + id);
+
+        // Without a hash, there is no telling whether a file left over from before is still
+        // the one at the URL. Otherwise, the job checks it before downloading anything.
+        if (tempFile.exists() && hash == null) {
+            tempFile.delete();
+        }
 
-        // If the file is already downloaded (such as from before), then don't re-download
-        if (!tempFile.exists()) {
+        String contentKey = getContentKey(urls, hash);
+        HttpDownloadJob existing = jobsByContent.get(contentKey);
+
+        if (existing != null && !existing.scheduled) {
+            // The same content is already queued, so just copy it once it's downloaded
+            existing.copies.add(tempFile);
+            existing.priority = existing.priority.max(priority);
+            coalesced++;
+        } else {
+            HttpDownloadJob job = new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName(), hash);
+            job.priority = priority;
+            job.limiter.setRate(jobRateLimit);
+            job.sequence = queue.size();
             total += size;
             left++;
-            queue.add(new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName()));
+            queue.add(job);
+            jobsByContent.put(contentKey, job);
         }
 
         return tempFile;
     }
 
 
+    /**
+     * Check whether a file left over from an earlier run is the one that
+     * is wanted now.
+     */
+    private static boolean isComplete(File file, String hash) {
+        try {
+            return FileUtils.getShaHash(file).equalsIgnoreCase(hash);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to check " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Set the rate that each download is limited to, on top of the limit
+     * set on {@link BandwidthLimiter#getGlobal()}. This also applies to
+     * downloads that are already running.
+     *
+     * @param jobRateLimit the rate in bytes per second, or 0 for no limit
+     */
+    public synchronized void setJobRateLimit(long jobRateLimit) {
+        this.jobRateLimit = jobRateLimit;
+        for (HttpDownloadJob job : queue) {
+            job.limiter.setRate(jobRateLimit);
+        }
+    }
+
+    /**
+     * Get a key that is the same for requests that will return the same
+     * content, which is any request for the same set of URLs and hash.
+     */
+    private static String getContentKey(List<URL> urls, String hash) {
+        List<String> sorted = new ArrayList<String>();
+        for (URL url : urls) {
+            sorted.add(url.toExternalForm());
+        }
+        Collections.sort(sorted);
+        return Strings.nullToEmpty(hash).toLowerCase(Locale.ROOT) + " " + sorted;
+    }
+
     @Override
     public File download(URL url, String key, long size, String name) {
+        return download(url, key, size, name, null);
+    }
+
+    @Override
+    public File download(URL url, String key, long size, String name, String hash) {
+        return download(url, key, size, name, hash, DownloadPriority.NORMAL);
+    }
+
+    @Override
+    public File download(URL url, String key, long size, String name, String hash, DownloadPriority priority) {
         List<URL> urls = new ArrayList<URL>();
         urls.add(url);
-        return download(urls, key, size, name);
+        return download(urls, key, size, name, hash, priority);
+    }
+
+    /**
+     * Start downloading the files queued so far in the background, ahead of
+     * {@link #execute()}. This can be called again to start on files that
+     * have been queued since. If {@link #execute()} won't be called after
+     * all, {@link #cancel()} must be called instead.
+     */
+    public void prefetch() {
+        start();
+        schedule();
+    }
+
+    /**
+     * Stop downloads started by {@link #prefetch()}. What has been
+     * downloaded so far is kept, so that it can be resumed later.
+     */
+    public void cancel() {
+        stop();
     }
 
     /**
@@ -112,35 +261,175 @@ public class HttpDownloader implements Downloader {
      * @throws IOException thrown on I/O error
      */
     public void execute() throws InterruptedException, IOException {
+        Set<String> journalKeys = new HashSet<String>();
+
         synchronized (this) {
             queue = Collections.unmodifiableList(queue);
+            jobsByContent.clear();
+            if (coalesced > 0) {
+                log.info("Downloading " + coalesced + " duplicate file(s) only once");
+            }
+            for (HttpDownloadJob job : queue) {
+                journalKeys.add(job.getKey());
+            }
         }
 
-        ListeningExecutorService executor = MoreExecutors.listeningDecorator(
-                Executors.newFixedThreadPool(threadCount));
+        start();
 
         try {
-            List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+            // Partial files of downloads that are no longer wanted can't be resumed
+            journal.retain(journalKeys);
 
-            synchronized (this) {
+            schedule();
+            scheduler.close();
+
+            // Files that were prefetched may have finished before anyone was listening
+            Callback<File> listener = completionListener;
+            if (listener != null) {
                 for (HttpDownloadJob job : queue) {
-                    futures.add(executor.submit(job));
+                    if (job.done) {
+                        job.report(listener);
+                    }
                 }
             }
 
+            List<ListenableFuture<?>> futures;
             try {
+                dispatcher.get();
+                synchronized (this) {
+                    futures = new ArrayList<ListenableFuture<?>>(this.futures);
+                }
                 Futures.allAsList(futures).get();
             } catch (ExecutionException e) {
                 throw new IOException("Something went wrong", e);
             }
 
+            HttpConnectionPool.logStats();
+            mirrors.logStats();
+
             synchronized (this) {
                 if (failed.size() > 0) {
                     throw new IOException(failed.size() + " file(s) could not be downloaded");
                 }
             }
         } finally {
-            executor.shutdownNow();
+            stop();
+        }
+    }
+
+    /**
+     * Set up everything needed to download files, and start handing queued
+     * files to threads as the scheduler lets them through, unless that has
+     * been done already.
+     */
+    private synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = new DownloadScheduler(threadCount, maxThreadCount, largeFileThreadCount, largeFileThreshold);
+        hedgeExecutor = Executors.newCachedThreadPool();
+        journal = DownloadJournal.load(journalFile);
+
+        final DownloadJournal journal = this.journal;
+        checkpointer = Executors.newSingleThreadScheduledExecutor();
+        checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint(journal);
+            }
+        }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+
+        // The scheduler decides how many jobs run at once, so threads are only
+        // created as jobs are let through
+        executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+        final DownloadScheduler scheduler = this.scheduler;
+        final ListeningExecutorService executor = this.executor;
+        dispatcher = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                HttpDownloadJob next;
+                while ((next = scheduler.next()) != null) {
+                    synchronized (HttpDownloader.this) {
+                        futures.add(executor.submit(next));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Hand the files queued since the last call to the scheduler.
+     */
+    private void schedule() {
+        List<HttpDownloadJob> jobs = new ArrayList<HttpDownloadJob>();
+        Set<URL> mirrorUrls = new HashSet<URL>();
+
+        synchronized (this) {
+            for (HttpDownloadJob job : queue) {
+                if (!job.scheduled) {
+                    job.scheduled = true;
+                    // A large file is downloaded in segments, each over its own connection
+                    job.connections = job.size >= segmentThreshold && segmentCount > 1
+                            ? (int) Math.min(Math.min(segmentCount, maxThreadCount),
+                                    (job.size + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE) : 1;
+                    jobs.add(job);
+                    if (job.urls.size() > 1) {
+                        mirrorUrls.addAll(job.urls);
+                    }
+                }
+            }
+            scheduler.addAll(jobs);
+        }
+
+        mirrors.probe(mirrorUrls, hedgeExecutor);
+    }
+
+    /**
+     * Stop every download and save how far they got, if anything has been
+     * started.
+     */
+    private void stop() {
+        ExecutorService executor;
+        ExecutorService hedgeExecutor;
+        ExecutorService checkpointer;
+
+        synchronized (this) {
+            if (this.executor == null) {
+                return;
+            }
+            executor = this.executor;
+            hedgeExecutor = this.hedgeExecutor;
+            checkpointer = this.checkpointer;
+            this.executor = null;
+        }
+
+        executor.shutdownNow();
+        hedgeExecutor.shutdownNow();
+        checkpointer.shutdownNow();
+        checkpoint(journal);
+    }
+
+    /**
+     * Record how far every running download has got and save the journal.
+     *
+     * @param journal the journal
+     */
+    private void checkpoint(DownloadJournal journal) {
+        List<HttpDownloadJob> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<HttpDownloadJob>(running);
+        }
+
+        for (HttpDownloadJob job : jobs) {
+            job.checkpoint(journal);
+        }
+
+        try {
+            journal.save(journalFile);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to save the download journal", e);
         }
     }
 
@@ -150,11 +439,32 @@ public class HttpDownloader implements Downloader {
             return -1;
         }
 
+        return getDownloaded() / (double) total;
+    }
+
+    private long getDownloaded() {
         long downloaded = this.downloaded;
         for (HttpDownloadJob job : running) {
             downloaded += Math.max(0, job.getProgress() * job.size);
         }
-        return downloaded / (double) total;
+        return downloaded;
+    }
+
+    /**
+     * Get a line with how much has been downloaded and how fast, along
+     * with the speed limit if there is one.
+     */
+    private String getTransferStatus() {
+        BandwidthLimiter limiter = BandwidthLimiter.getGlobal();
+        double downloaded = getDownloaded() / (1024.0 * 1024);
+        double size = total / (1024.0 * 1024);
+        double throughput = limiter.getThroughput() / 1024;
+        long rate = limiter.getRate();
+        if (rate > 0) {
+            return tr("downloader.transferLimited", downloaded, size, throughput, rate / 1024.0);
+        } else {
+            return tr("downloader.transfer", downloaded, size, throughput);
+        }
     }
 
     @Override
@@ -163,6 +473,7 @@ public class HttpDownloader implements Downloader {
         if (running.size() == 1) {
             return tr("downloader.downloadingItem", running.get(0).getName()) +
                     "\n" + running.get(0).getStatus() +
+                    "\n" + getTransferStatus() +
                     "\n" + failMessage;
         } else if (running.size() > 0) {
             StringBuilder builder = new StringBuilder();
@@ -170,7 +481,11 @@ public class HttpDownloader implements Downloader {
                 builder.append("\n");
                 builder.append(job.getStatus());
             }
+            if (scheduler != null) {
+                builder.append(scheduler.getStatus());
+            }
             return tr("downloader.downloadingList", queue.size(), left, failed.size()) +
+                    "\n" + getTransferStatus() +
                     builder.toString() +
                     "\n" + failMessage;
         } else {
@@ -178,32 +493,158 @@ public class HttpDownloader implements Downloader {
         }
     }
 
+    /**
+     * Describe a failed request for the {@link RetryPolicy}.
+     */
+    private static RetryPolicy.Failure getFailure(int attempt, HttpRequest request, IOException e) {
+        int code = getResponseCode(request);
+        long retryAfter = code == 429 || code == 503 ? getRetryAfter(request) : -1;
+        return new RetryPolicy.Failure(attempt, code, retryAfter, e);
+    }
+
+    /**
+     * Check whether a failure was the fault of the host rather than of
+     * the file, which is when no response was received or the server
+     * couldn't or wouldn't handle the request. Being interrupted isn't
+     * the host's fault, but timing out is.
+     */
+    private static boolean isHostFailure(RetryPolicy.Failure failure) {
+        int code = failure.getResponseCode();
+        return !(failure.getCause() instanceof HttpRequest.HashMismatchException)
+                && !(failure.getCause() instanceof CircuitOpenException)
+                && !isInterruption(failure.getCause())
+                && (code == -1 || code == 429 || code >= 500);
+    }
+
+    private static boolean isInterruption(IOException e) {
+        return e instanceof InterruptedIOException
+                && !(e instanceof SocketTimeoutException)
+                && Thread.currentThread().isInterrupted();
+    }
+
+    private static int getResponseCode(HttpRequest request) {
+        if (request != null && request.isConnected()) {
+            try {
+                return request.getResponseCode();
+            } catch (IOException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the delay asked for by the Retry-After header, which is either
+     * a number of seconds or a date.
+     *
+     * @return the delay in milliseconds, or -1 if there is none
+     */
+    private static long getRetryAfter(HttpRequest request) {
+        String value = request.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, time - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
     public class HttpDownloadJob implements Runnable, ProgressObservable {
         private final File destFile;
         private final List<URL> urls;
         private final long size;
+        private final String hash;
         @Getter private String name;
+        @Getter(AccessLevel.PACKAGE) private final String host;
         private HttpRequest request;
+        private volatile List<Segment> segments;
+        private HttpRequest.PartialDownloadInfo partial;
+        private int resumeTries;
+        private final List<File> copies = new ArrayList<File>();
+        private volatile File partFile;
+        private volatile DownloadJournal.Entry entry;
+        private DownloadJournal.Entry resumeFrom;
+        private volatile String validator;
+        private DownloadPriority priority = DownloadPriority.NORMAL;
+        private int sequence;
+        private boolean scheduled;
+        private volatile boolean done;
+        private int connections = 1;
+        private final BandwidthLimiter limiter = new BandwidthLimiter();
+        private final Map<URL, Integer> attempts = new HashMap<URL, Integer>();
+        private final Map<URL, Long> notBefore = new HashMap<URL, Long>();
+        private List<URL> remaining;
+        private IOException lastException;
+        private long retryAt;
 
-        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name) {
+        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name, String hash) {
             this.destFile = destFile;
             this.urls = urls;
             this.size = size;
             this.name = name;
+            this.hash = hash;
+            this.host = urls.get(0).getHost();
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getKey() {
+            return destFile.getName();
+        }
+
+        DownloadPriority getPriority() {
+            return priority;
+        }
+
+        int getSequence() {
+            return sequence;
+        }
+
+        long getRetryAt() {
+            return retryAt;
+        }
+
+        int getConnections() {
+            return connections;
         }
 
         @Override
         public void run() {
+            long bytes = 0;
+            boolean waiting = false;
             try {
                 synchronized (HttpDownloader.this) {
                     running.add(this);
                 }
 
-                download();
+                if (!download()) {
+                    // Give up the slot until one of the sources can be tried again
+                    waiting = true;
+                    checkpoint(journal);
+                    return;
+                }
+                copy();
 
                 synchronized (HttpDownloader.this) {
                     downloaded += size;
                 }
+                bytes = Math.max(1, destFile.length());
+                done = true;
+
+                Callback<File> listener = completionListener;
+                if (listener != null) {
+                    report(listener);
+                }
             } catch (IOException e) {
                 synchronized (HttpDownloader.this) {
                     failed.add(this);
@@ -212,76 +653,625 @@ public class HttpDownloader implements Downloader {
                 log.info("Download of " + destFile + " was interrupted");
             } finally {
                 synchronized (HttpDownloader.this) {
-                    left--;
+                    if (!waiting) {
+                        left--;
+                    }
                     running.remove(this);
                 }
+                if (waiting) {
+                    scheduler.retryLater(this);
+                } else {
+                    scheduler.release(this, bytes);
+                }
             }
         }
 
-        private void download() throws IOException, InterruptedException {
-            log.log(Level.INFO, "Downloading " + destFile + " from " + urls);
-
+        /**
+         * Download the file, or carry on with a download that had to wait
+         * before its sources could be tried again.
+         *
+         * @return true if the file was downloaded, or false if the job has to
+         *         wait until {@link #getRetryAt()} before it can carry on
+         */
+        private boolean download() throws IOException, InterruptedException {
             File destDir = destFile.getParentFile();
             File tempFile = new File(destDir, destFile.getName() + ".tmp");
-            destDir.mkdirs();
+
+            if (remaining == null) {
+                // If the file is already downloaded (such as from before), then don't re-download
+                if (destFile.exists()) {
+                    if (hash != null && isComplete(destFile, hash)) {
+                        log.info("Using " + destFile + " downloaded earlier");
+                        return true;
+                    }
+                    destFile.delete();
+                }
+
+                log.log(Level.INFO, "Downloading " + destFile + " from " + urls);
+                destDir.mkdirs();
+
+                // Pick up where an earlier run of the launcher left off
+                DownloadJournal.Entry saved = journal.get(getKey());
+                if (saved != null && saved.matches(urls, size, hash) && tempFile.exists()) {
+                    resumeFrom = saved;
+                    validator = saved.getValidator();
+                }
+
+                DownloadJournal.Entry entry = new DownloadJournal.Entry();
+                for (URL url : urls) {
+                    entry.getUrls().add(url.toExternalForm());
+                }
+                entry.setSize(size);
+                entry.setHash(hash);
+                partFile = tempFile;
+                this.entry = entry;
+                journal.put(getKey(), entry);
+                remaining = new ArrayList<URL>(urls);
+            }
 
             // Try to download
-            download(tempFile);
+            if (!download(tempFile)) {
+                return false;
+            }
 
             destFile.delete();
             if (!tempFile.renameTo(destFile)) {
                 throw new IOException(String.format("Failed to rename %s to %s", tempFile, destFile));
             }
+
+            this.entry = null;
+            journal.remove(getKey());
+            return true;
         }
 
-        private void download(File file) throws IOException, InterruptedException {
-            int trial = 0;
-            boolean first = true;
-            IOException lastException = null;
+        /**
+         * Record how far this download has got in the journal.
+         */
+        private void checkpoint(DownloadJournal journal) {
+            DownloadJournal.Entry entry = this.entry;
+            File partFile = this.partFile;
+            if (entry == null || partFile == null) {
+                return;
+            }
 
-            do {
-                for (URL url : urls) {
-                    // Sleep between each trial
-                    if (!first) {
-                        Thread.sleep((long) (retryDelay / 2 + (random.nextDouble() * retryDelay)));
+            List<Segment> segments = this.segments;
+            synchronized (journal) {
+                entry.setValidator(validator);
+                if (segments != null) {
+                    List<DownloadJournal.Range> ranges = new ArrayList<DownloadJournal.Range>();
+                    for (Segment segment : segments) {
+                        DownloadJournal.Range range = new DownloadJournal.Range();
+                        range.setStart(segment.start);
+                        range.setEnd(segment.end);
+                        range.setDone(segment.done);
+                        ranges.add(range);
                     }
-                    first = false;
+                    entry.setSegments(ranges);
+                    entry.setLength(partFile.length());
+                } else {
+                    entry.setSegments(null);
+                    entry.setWritten(partFile.length());
+                }
+            }
+        }
+
+        /**
+         * Take the progress of an earlier attempt for a download made in
+         * one piece. The saved progress of an earlier run is cut back to the
+         * last recorded length in case the rest didn't make it to disk.
+         */
+        private HttpRequest.PartialDownloadInfo takeResumeInfo(File file) throws IOException {
+            HttpRequest.PartialDownloadInfo partial = this.partial;
+            this.partial = null;
+            if (partial != null) {
+                log.info(String.format("Resuming download of %s at %d bytes", name, partial.getCurrentLength()));
+                return partial;
+            }
 
+            DownloadJournal.Entry saved = resumeFrom;
+            resumeFrom = null;
+            if (saved == null || saved.getSegments() != null) {
+                return null;
+            }
+
+            long offset = Math.min(saved.getWritten(), file.length());
+            if (offset <= 0) {
+                return null;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+
+            log.info(String.format("Resuming download of %s at %d bytes", name, offset));
+            return new HttpRequest.PartialDownloadInfo(size, offset);
+        }
+
+        private void report(Callback<File> listener) {
+            listener.handle(destFile);
+            for (File copy : copies) {
+                listener.handle(copy);
+            }
+        }
+
+        /**
+         * Give everyone else who asked for the same content their own copy.
+         * These aren't hard links, as the files may end up somewhere that
+         * the user edits them.
+         */
+        private void copy() throws IOException {
+            for (File copy : copies) {
+                // Copy next to the destination first, as a task may already be waiting on the file
+                copy.getParentFile().mkdirs();
+                File tempFile = File.createTempFile(copy.getName(), ".tmp", copy.getParentFile());
+                try {
+                    Files.copy(destFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
                     try {
-                        tryDownloadFrom(url, file, null, 0);
-                        return;
-                    } catch (IOException e) {
-                        lastException = e;
+                        Files.move(tempFile.toPath(), copy.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
                     }
+                } finally {
+                    tempFile.delete();
                 }
-            } while (++trial < tryCount);
+            }
+        }
+
+        /**
+         * Try each source that is left until one works.
+         *
+         * @return true if the file was downloaded, or false if every source
+         *         that is left has to wait before it can be tried again
+         */
+        private boolean download(File file) throws IOException, InterruptedException {
+            while (true) {
+                // Take the best source that isn't waiting to be retried
+                List<URL> urls = mirrors.order(remaining, size);
+                long now = System.currentTimeMillis();
+                long wakeUp = Long.MAX_VALUE;
+                URL url = null;
+                URL backup = null;
+                for (URL candidate : urls) {
+                    Long time = notBefore.get(candidate);
+                    if (time != null && time > now) {
+                        wakeUp = Math.min(wakeUp, time);
+                    } else if (circuitBreaker.isOpen(candidate)) {
+                        // Another mirror may be up, otherwise give up at once
+                        continue;
+                    } else if (url == null) {
+                        url = candidate;
+                    } else if (backup == null && !attempts.containsKey(candidate)) {
+                        // Only untried sources are raced against each other
+                        backup = candidate;
+                    }
+                }
+
+                if (url == null) {
+                    if (wakeUp == Long.MAX_VALUE) {
+                        break;
+                    }
+                    retryAt = wakeUp;
+                    return false;
+                }
+
+                if (!circuitBreaker.allowRequest(url)) {
+                    continue;
+                }
+
+                Integer attempt = attempts.get(url);
+                attempt = attempt != null ? attempt + 1 : 1;
+                attempts.put(url, attempt);
+                if (attempt > 1) {
+                    backup = null;
+                }
+                request = null;
+
+                try {
+                    if (connections > 1) {
+                        long start = System.currentTimeMillis();
+                        try {
+                            tryDownloadSegmented(url, file);
+                            mirrors.recordSuccess(url, file.length(), System.currentTimeMillis() - start);
+                        } catch (IOException e) {
+                            if (isHostFailure(getFailure(attempt, request, e))) {
+                                mirrors.recordFailure(url);
+                            }
+                            throw e;
+                        }
+                    } else {
+                        HttpRequest.PartialDownloadInfo resumeInfo = takeResumeInfo(file);
+                        tryDownloadFrom(url, resumeInfo == null ? backup : null, file, resumeInfo);
+                    }
+                    circuitBreaker.recordSuccess(request != null ? request.getUrl() : url);
+                    return true;
+                } catch (IOException e) {
+                    lastException = e;
+
+                    HttpRequest request = this.request;
+                    URL failedUrl = request != null ? request.getUrl() : url;
+                    RetryPolicy.Failure failure = getFailure(attempt, request, e);
+                    if (isHostFailure(failure)) {
+                        circuitBreaker.recordFailure(failedUrl);
+                    } else if (!(e instanceof CircuitOpenException)) {
+                        circuitBreaker.recordSuccess(failedUrl);
+                    }
+
+                    long delay = -1;
+                    if (isResumable(e)) {
+                        delay = retryPolicy.getRetryDelay(getFailure(++resumeTries, request, e));
+                        if (delay >= 0) {
+                            // Carrying on with what was downloaded isn't another go at the source
+                            attempts.put(url, attempt - 1);
+                        } else {
+                            partial = null;
+                            segments = null;
+                        }
+                    }
+                    if (delay < 0) {
+                        resumeTries = 0;
+                        delay = retryPolicy.getRetryDelay(failure);
+                    }
+                    if (delay < 0) {
+                        remaining.remove(url);
+                    } else {
+                        notBefore.put(url, System.currentTimeMillis() + delay);
+                    }
+                }
+            }
 
-            throw new IOException("Failed to download from " + urls, lastException);
+            throw new IOException("Failed to download from " + this.urls, lastException);
         }
 
-        private void tryDownloadFrom(URL url, File file, HttpRequest.PartialDownloadInfo retryDetails, int tries)
+        /**
+         * Check whether a failed attempt left progress behind that the next
+         * attempt can carry on from.
+         */
+        private boolean isResumable(IOException e) {
+            return (partial != null || segments != null)
+                    && !(e instanceof HttpRequest.HashMismatchException)
+                    && !(e instanceof CircuitOpenException);
+        }
+
+        /**
+         * Make one attempt at downloading the file in one piece. If the
+         * request fails partway through from a server that supports ranges,
+         * what was downloaded is kept for the next attempt to carry on from.
+         */
+        private void tryDownloadFrom(URL url, URL backup, File file, HttpRequest.PartialDownloadInfo retryDetails)
                 throws InterruptedException, IOException {
             try {
-                request = HttpRequest.get(url);
-                request.setResumeInfo(retryDetails).execute().expectResponseCode(200).saveContent(file);
+                request = backup != null ? executeHedged(url, backup) : execute(url, retryDetails);
+                url = request.getUrl();
+
+                if (retryDetails != null) {
+                    request.expectResponseCode(200, 206);
+                } else {
+                    request.expectResponseCode(200);
+                }
+                validator = getValidator(request);
+
+                long start = System.currentTimeMillis();
+                request.expectHash(hash).saveContent(file);
+                mirrors.recordSuccess(url, file.length(), System.currentTimeMillis() - start);
             } catch (IOException e) {
                 log.log(Level.WARNING, "Failed to download " + url, e);
+                // A source that just doesn't have the file (such as a 404) isn't a bad mirror
+                if (request != null && isHostFailure(getFailure(1, request, e))) {
+                    mirrors.recordFailure(url);
+                }
+                backOffIfOverloaded(url, e);
 
                 // We only want to try to resume a partial download if the request succeeded before
-                // throwing an exception halfway through. If it didn't succeed, just throw the error.
-                if (tries >= tryCount || !request.isConnected() || !request.isSuccessCode()) {
-                    throw e;
+                // throwing an exception halfway through. A corrupt body can't be resumed at all.
+                if (request != null && request.isConnected() && request.isSuccessCode()
+                        && !(e instanceof HttpRequest.HashMismatchException)) {
+                    Optional<HttpRequest.PartialDownloadInfo> byteRangeSupport = request.canRetryPartial();
+                    if (byteRangeSupport.isPresent()) {
+                        // Carry on from what actually made it into the file
+                        partial = new HttpRequest.PartialDownloadInfo(
+                                byteRangeSupport.get().getExpectedLength(), file.length());
+                    }
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Send the request and wait for the response, recording how long
+         * the source took to respond.
+         */
+        private HttpRequest execute(URL url, HttpRequest.PartialDownloadInfo retryDetails) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                HttpRequest request = HttpRequest.get(url).preferHttp2().disableCompression()
+                        .limitRate(limiter).setResumeInfo(retryDetails);
+                String validator = this.validator;
+                if (retryDetails != null && validator != null) {
+                    // Get the whole file instead if it has changed since
+                    request.header("If-Range", validator);
+                }
+                request.execute();
+                mirrors.recordResponse(url, System.currentTimeMillis() - start);
+                return request;
+            } catch (IOException e) {
+                if (isHostFailure(getFailure(1, null, e))) {
+                    mirrors.recordFailure(url);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Send the request to the first URL, and if it doesn't respond in
+         * time or fails, to the backup URL as well. Whichever responds first
+         * is used and the other response is discarded.
+         */
+        private HttpRequest executeHedged(final URL url, final URL backup) throws IOException, InterruptedException {
+            final List<HttpRequest> responses = new ArrayList<HttpRequest>();
+            final AtomicBoolean settled = new AtomicBoolean();
+            CompletionService<HttpRequest> completion = new ExecutorCompletionService<HttpRequest>(hedgeExecutor);
+            Future<HttpRequest> result = null;
+            HttpRequest winner = null;
+
+            class Attempt implements Callable<HttpRequest> {
+                private final URL target;
+
+                Attempt(URL target) {
+                    this.target = target;
                 }
 
-                Optional<HttpRequest.PartialDownloadInfo> byteRangeSupport = request.canRetryPartial();
-                if (byteRangeSupport.isPresent()) {
-                    tryDownloadFrom(url, file, byteRangeSupport.get(), tries + 1);
+                @Override
+                public HttpRequest call() throws IOException {
+                    HttpRequest request = execute(target, null);
+                    synchronized (responses) {
+                        if (settled.get()) {
+                            discard(request);
+                        } else {
+                            responses.add(request);
+                        }
+                    }
+                    return request;
+                }
+            }
+
+            try {
+                completion.submit(new Attempt(url));
+                int pending = 1;
+
+                long delay = mirrors.getHedgeDelay(url);
+                result = completion.poll(delay, TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    pending--;
+                } else {
+                    mirrors.recordSlow(url, delay);
+                }
+
+                if (result == null || isFailed(result)) {
+                    log.info((result == null ? url + " is slow to respond" : url + " failed") + ", also trying " + backup);
+                    completion.submit(new Attempt(backup));
+                    pending++;
+
+                    while (pending > 0) {
+                        result = completion.take();
+                        pending--;
+                        if (!isFailed(result)) {
+                            break;
+                        }
+                    }
+                }
+
+                try {
+                    winner = result.get();
+                    return winner;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Failed to send request", e.getCause());
+                }
+            } finally {
+                synchronized (responses) {
+                    settled.set(true);
+                    for (HttpRequest response : responses) {
+                        if (response != winner) {
+                            discard(response);
+                        }
+                    }
                 }
             }
         }
 
+        private boolean isFailed(Future<?> future) throws InterruptedException {
+            try {
+                future.get();
+                return false;
+            } catch (ExecutionException e) {
+                return true;
+            }
+        }
+
+        private void discard(HttpRequest request) {
+            try {
+                request.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Failed to close discarded request", e);
+            }
+        }
+
+        private void backOffIfOverloaded(URL url, IOException e) {
+            int code = getResponseCode(this.request);
+
+            // Only errors that suggest we're asking too much of the host count,
+            // not files that are missing or corrupt
+            if (code == -1 || code == 429 || code == 503) {
+                if (!(e instanceof HttpRequest.HashMismatchException)) {
+                    scheduler.backOff(url.getHost(), code);
+                }
+            }
+        }
+
+        /**
+         * Download the file in several ranges at once, each over its own
+         * connection, as a single connection is often limited to a fraction
+         * of the available bandwidth. HTTP/2 is not used here because it
+         * would put every range on the same connection.
+         */
+        private void tryDownloadSegmented(URL url, File file) throws InterruptedException, IOException {
+            DownloadJournal.Entry saved = resumeFrom;
+            resumeFrom = null;
+
+            // Carry on from an earlier attempt that failed partway through
+            List<Segment> previous = segments;
+            if (previous != null && previous.get(previous.size() - 1).end + 1 == file.length()) {
+                List<Segment> segments = new ArrayList<Segment>();
+                for (Segment earlier : previous) {
+                    Segment segment = new Segment(url, file, earlier.start, earlier.end);
+                    segment.done = earlier.done;
+                    segments.add(segment);
+                }
+                log.info(String.format("Resuming download of %s in %d segments", url, segments.size()));
+                downloadSegments(url, file, segments);
+                return;
+            }
+            segments = null;
+
+            if (saved != null && saved.getSegments() != null && saved.getLength() == file.length()) {
+                List<Segment> segments = new ArrayList<Segment>();
+                for (DownloadJournal.Range range : saved.getSegments()) {
+                    Segment segment = new Segment(url, file, range.getStart(), range.getEnd());
+                    segment.done = Math.max(0, Math.min(range.getDone(), range.getEnd() - range.getStart() + 1));
+                    segments.add(segment);
+                }
+                log.info(String.format("Resuming download of %s in %d segments", url, segments.size()));
+                downloadSegments(url, file, segments);
+                return;
+            }
+
+            long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + connections - 1) / connections);
+
+            // The first range tells us whether the server supports ranges and the real size
+            request = HttpRequest.get(url)
+                    .limitRate(limiter)
+                    .header("Range", String.format("bytes=0-%d", segmentSize - 1))
+                    .execute()
+                    .expectResponseCode(200, 206);
+
+            long length = getTotalLength(request);
+            validator = getValidator(request);
+            if (request.getResponseCode() != 206 || length < 0) {
+                log.info("Server doesn't support ranges for " + url + ", downloading in one piece");
+                request.expectHash(hash).saveContent(file);
+                return;
+            }
+
+            List<Segment> segments = new ArrayList<Segment>();
+            for (long start = 0; start < length; start += segmentSize) {
+                segments.add(new Segment(url, file, start, Math.min(start + segmentSize, length) - 1));
+            }
+            segments.get(0).initial = request;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+
+            log.info(String.format("Downloading %s in %d segments", url, segments.size()));
+            downloadSegments(url, file, segments);
+        }
+
+        private void downloadSegments(URL url, File file, List<Segment> segments)
+                throws InterruptedException, IOException {
+            this.segments = segments;
+
+            ExecutorService executor = Executors.newFixedThreadPool(segments.size());
+            IOException failure = null;
+            try {
+                CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+                Map<Future<Void>, Segment> futures = new HashMap<Future<Void>, Segment>();
+                for (Segment segment : segments) {
+                    futures.put(completion.submit(segment), segment);
+                }
+                // Wait for every segment so that none is still writing when the job moves on
+                for (int i = 0; i < segments.size(); i++) {
+                    Future<Void> future = completion.take();
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            // Stop the other segments, keeping what they have written so far
+                            executor.shutdownNow();
+                            request = futures.get(future).request;
+                            failure = e.getCause() instanceof IOException
+                                    ? (IOException) e.getCause()
+                                    : new IOException("Failed to download segment", e.getCause());
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (failure != null) {
+                log.log(Level.WARNING, "Failed to download " + url, failure);
+                throw failure;
+            }
+
+            if (hash != null) {
+                String actualHash = FileUtils.getShaHash(file);
+                if (!actualHash.equalsIgnoreCase(hash)) {
+                    this.segments = null;
+                    throw new HttpRequest.HashMismatchException(String.format("Got hash %s for %s, expected %s",
+                            actualHash, url, hash));
+                }
+            }
+        }
+
+        /**
+         * Get the strong ETag or otherwise the modification date of the
+         * response, which can be sent with If-Range when resuming.
+         */
+        private String getValidator(HttpRequest request) {
+            String etag = request.getHeaderField("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return request.getHeaderField("Last-Modified");
+        }
+
+        private long getTotalLength(HttpRequest request) {
+            // Content-Range: bytes 0-1023/146515
+            String range = request.getHeaderField("Content-Range");
+            if (range != null) {
+                int index = range.lastIndexOf('/');
+                if (index >= 0) {
+                    try {
+                        return Long.parseLong(range.substring(index + 1).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            return -1;
+        }
+
         @Override
         public double getProgress() {
+            List<Segment> segments = this.segments;
+            if (segments != null) {
+                long done = 0;
+                long total = 0;
+                for (Segment segment : segments) {
+                    done += segment.done;
+                    total += segment.end - segment.start + 1;
+                }
+                return done / (double) total;
+            }
+
             HttpRequest request = this.request;
             return request != null ? request.getProgress() : -1;
         }
@@ -295,5 +1285,85 @@ public class HttpDownloader implements Downloader {
                 return tr("downloader.jobPending", name);
             }
         }
+
+        /**
+         * A byte range of a file that is downloaded on its own connection
+         * and written directly to its place in the file.
+         */
+        private class Segment implements Callable<Void> {
+            private final URL url;
+            private final File file;
+            private final long start;
+            private final long end;
+            private HttpRequest initial;
+            private HttpRequest request;
+            private volatile long done;
+
+            private Segment(URL url, File file, long start, long end) {
+                this.url = url;
+                this.file = file;
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                HttpRequest request = initial;
+                initial = null;
+                this.request = request;
+                if (request == null && start + done > end) {
+                    // Finished by an earlier attempt
+                    return null;
+                }
+
+                if (request == null) {
+                    if (!circuitBreaker.allowRequest(url)) {
+                        throw new CircuitOpenException("Not making requests to " + url.getHost() + " for now");
+                    }
+                    request = HttpRequest.get(url)
+                            .limitRate(limiter)
+                            .header("Range", String.format("bytes=%d-%d", start + done, end));
+                    this.request = request;
+                    String validator = HttpDownloadJob.this.validator;
+                    if (validator != null) {
+                        request.header("If-Range", validator);
+                    }
+                    request.execute().expectResponseCode(206);
+                }
+
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.seek(start + done);
+                    final OutputStream fileOut = Channels.newOutputStream(raf.getChannel());
+                    OutputStream out = new BufferedOutputStream(new FilterOutputStream(fileOut) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            fileOut.write(b, off, len);
+                            done += len;
+                        }
+                    });
+                    try {
+                        request.saveContent(out);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    raf.close();
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Thrown when a request isn't made because the {@link CircuitBreaker}
+     * has shut off the host.
+     */
+    private static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 2622410436476716052L;
+
+        private CircuitOpenException(String message) {
+            super(message);
+        }
     }
 }
@@ -1,15 +1,21 @@
 package com.skcraft.launcher.install;
 
+import com.skcraft.launcher.ObjectStore;
 import com.skcraft.launcher.model.loader.LocalLoader;
 import lombok.Data;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 @Data
 public class InstallExtras {
 	private final File contentDir;
 	private final HashMap<String, LocalLoader> loaders;
+	private final ObjectStore objectStore;
+	private final VerifyCache verifyCache;
+	private final Set<String> objectHashes = new HashSet<String>();
 
 	public LocalLoader getLoader(String key) {
 		return loaders.get(key);
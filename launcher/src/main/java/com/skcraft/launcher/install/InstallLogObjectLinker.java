@@ -0,0 +1,71 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.skcraft.launcher.Launcher;
+import com.skcraft.launcher.ObjectStore;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+
+import static com.skcraft.launcher.util.SharedLocale.tr;
+
+@Log
+public class InstallLogObjectLinker implements InstallTask {
+
+    private final InstallLog installLog;
+    private final ObjectStore objectStore;
+    private final String hash;
+    private final File from;
+    private final File to;
+    private final boolean link;
+
+    /**
+     * Create a new task.
+     *
+     * @param installLog the install log
+     * @param objectStore the object store
+     * @param hash the SHA-1 hash of the object
+     * @param from a downloaded file to put in the store first, or null if the object is already stored
+     * @param to the target file
+     * @param link true to hard link the object, false to copy it
+     */
+    public InstallLogObjectLinker(InstallLog installLog, @NonNull ObjectStore objectStore, @NonNull String hash,
+                                  File from, @NonNull File to, boolean link) {
+        this.installLog = installLog;
+        this.objectStore = objectStore;
+        this.hash = hash;
+        this.from = from;
+        this.to = to;
+        this.link = link;
+    }
+
+    @Override
+    public void execute(Launcher launcher) throws IOException {
+        if (from != null) {
+            objectStore.store(hash, from);
+        }
+
+        InstallLogObjectLinker.log.log(Level.INFO, "Installing to {0} (from object {1})...", new Object[]{to.getAbsoluteFile(), hash});
+        objectStore.place(hash, to, link);
+        installLog.add(to, to);
+    }
+
+    @Override
+    public double getProgress() {
+        return -1;
+    }
+
+    @Override
+    public String getStatus() {
+        return tr("installer.movingFile", hash, to);
+    }
+
+}
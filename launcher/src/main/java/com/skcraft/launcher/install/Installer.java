@@ -15,18 +15,21 @@ import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
-import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
 
 @Log
 public class Installer implements ProgressObservable {
 
+    private static final double DOWNLOAD_WEIGHT = 0.98;
+
     @Getter
     private final File tempDir;
     private final HttpDownloader downloader;
@@ -35,33 +38,101 @@ public class Installer implements ProgressObservable {
     private final TaskQueue lateQueue = new TaskQueue();
 
     private transient TaskQueue activeQueue;
+    private transient volatile boolean downloading;
+    private boolean downloaded;
 
-    public Installer(@NonNull File tempDir) {
+    /**
+     * Create a new installer.
+     *
+     * @param tempDir the temporary directory, which may be shared with other installers
+     * @param name a name that is unique among the installers sharing the directory
+     */
+    public Installer(@NonNull File tempDir, @NonNull String name) {
         this.tempDir = tempDir;
-        this.downloader = new HttpDownloader(tempDir);
+        this.downloader = new HttpDownloader(tempDir, name);
     }
 
     public void queue(@NonNull InstallTask runnable) {
-        mainQueue.queue(runnable);
+        mainQueue.queue(runnable, null, null);
+    }
+
+    /**
+     * Queue a task that only needs the given file from the downloader, so
+     * that it can run as soon as that file has been downloaded instead of
+     * waiting for every other download to finish.
+     *
+     * @param runnable the task
+     * @param download the file returned by {@link Downloader}, or null if the task needs no download
+     */
+    public void queue(@NonNull InstallTask runnable, File download) {
+        mainQueue.queue(runnable, download, null);
+    }
+
+    /**
+     * Queue a task that must only run after another queued task has
+     * finished successfully, such as setting permissions on a moved file.
+     *
+     * @param dependency the task that has to finish first
+     * @param runnable the task
+     * @throws IllegalArgumentException thrown if the dependency hasn't been queued
+     */
+    public void queueAfter(@NonNull InstallTask dependency, @NonNull InstallTask runnable) {
+        mainQueue.queue(runnable, null, dependency);
     }
 
     public void queueLate(@NonNull InstallTask runnable) {
-        lateQueue.queue(runnable);
+        lateQueue.queue(runnable, null, null);
+    }
+
+    /**
+     * Start downloading the files queued so far while more tasks are still
+     * being queued. Files queued later are downloaded once the installer
+     * is executed.
+     */
+    public void prefetch() {
+        downloader.prefetch();
+    }
+
+    /**
+     * Stop downloads started with {@link #prefetch()} if the installer
+     * will not be executed after all.
+     */
+    public void cancelPrefetch() {
+        downloader.cancel();
     }
 
     public void download() throws IOException, InterruptedException {
         downloader.execute();
+        downloaded = true;
     }
 
+    /**
+     * Download any queued files and execute the main tasks. Tasks that
+     * depend on a download are started while the remaining files are still
+     * being downloaded.
+     *
+     * @param launcher the launcher
+     * @throws Exception on download or task error
+     */
     public void execute(Launcher launcher) throws Exception {
         activeQueue = mainQueue;
-        mainQueue.execute(launcher);
-        activeQueue = null;
+        try {
+            if (downloaded) {
+                mainQueue.execute(launcher, null);
+            } else {
+                downloading = true;
+                mainQueue.execute(launcher, downloader);
+                downloaded = true;
+            }
+        } finally {
+            downloading = false;
+            activeQueue = null;
+        }
     }
 
     public void executeLate(Launcher launcher) throws Exception {
         activeQueue = lateQueue;
-        lateQueue.execute(launcher);
+        lateQueue.execute(launcher, null);
         activeQueue = null;
     }
 
@@ -71,13 +142,25 @@ public class Installer implements ProgressObservable {
 
     @Override
     public double getProgress() {
+        TaskQueue activeQueue = this.activeQueue;
         if (activeQueue == null) return 0.0;
-        return activeQueue.getFinished() / (double) activeQueue.getCount();
+        double tasks = activeQueue.getCount() > 0 ? activeQueue.getFinished() / (double) activeQueue.getCount() : 1;
+
+        if (downloading) {
+            double downloads = activeQueue.isDownloading() ? Math.max(0, downloader.getProgress()) : 1;
+            return DOWNLOAD_WEIGHT * downloads + (1 - DOWNLOAD_WEIGHT) * tasks;
+        } else {
+            return tasks;
+        }
     }
 
     @Override
     public String getStatus() {
-        if (activeQueue != null && activeQueue.getRunning() != null) {
+        TaskQueue activeQueue = this.activeQueue;
+        if (activeQueue != null && activeQueue.isDownloading()) {
+            return downloader.getStatus() + "\n" +
+                    tr("installer.executing", activeQueue.getCount() - activeQueue.getFinished());
+        } else if (activeQueue != null && activeQueue.getRunning() != null) {
             InstallTask running = activeQueue.getRunning();
             String status = running.getStatus();
             if (status == null) {
@@ -90,42 +173,216 @@ public class Installer implements ProgressObservable {
     }
 
     public static class TaskQueue {
-        private final ConcurrentLinkedQueue<InstallTask> queue = new ConcurrentLinkedQueue<>();
+        private final List<Node> nodes = new ArrayList<>();
+        private final Map<InstallTask, Node> index = new IdentityHashMap<>();
+        private final Map<File, List<Node>> waiting = new HashMap<>();
         private final AtomicInteger count = new AtomicInteger(0);
         private final AtomicInteger finished = new AtomicInteger(0);
         private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        private Launcher launcher;
+        private CountDownLatch latch;
+        private Exception failure;
+        private Thread downloadThread;
+        private Node slowest;
         @Getter
         private volatile InstallTask running;
+        @Getter
+        private volatile boolean downloading;
+
+        /**
+         * Queue a task.
+         *
+         * @param runnable the task
+         * @param download a file from the downloader that must exist before the task runs, or null
+         * @param dependency a previously queued task that must finish before this task runs, or null
+         * @throws IllegalArgumentException thrown if the dependency hasn't been queued
+         */
+        public synchronized void queue(@NonNull InstallTask runnable, File download, InstallTask dependency) {
+            Node parent = null;
+            if (dependency != null) {
+                parent = index.get(dependency);
+                if (parent == null) {
+                    throw new IllegalArgumentException("The task " + dependency + " must be queued first");
+                }
+            }
+
+            Node node = new Node(runnable);
 
-        public void queue(@NonNull InstallTask runnable) {
-            queue.add(runnable);
+            if (download != null) {
+                List<Node> list = waiting.get(download);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    waiting.put(download, list);
+                }
+                list.add(node);
+                node.pending++;
+            }
+
+            if (parent != null) {
+                parent.dependents.add(node);
+                node.pending++;
+            }
+
+            nodes.add(node);
+            index.put(runnable, node);
             count.incrementAndGet();
         }
 
-        public void execute(Launcher launcher) throws Exception {
+        /**
+         * Execute the queued tasks, running each one as soon as its download
+         * and the task it depends on are done. The first failing task cancels
+         * the remaining ones.
+         *
+         * @param launcher the launcher
+         * @param downloader a downloader to run at the same time, or null if everything is downloaded already
+         * @throws Exception on download error, task error or interruption
+         */
+        public void execute(Launcher launcher, HttpDownloader downloader) throws Exception {
+            long start = System.currentTimeMillis();
+
             try {
-                for (InstallTask runnable : queue) {
-                    checkInterrupted();
-                    running = runnable;
-                    executor.submit(() -> {
-                        try {
-                            runnable.execute(launcher);
-                        } catch (Exception e) {
-                            log.log(Level.SEVERE, "Failed to execute task: " + runnable, e);
+                synchronized (this) {
+                    this.launcher = launcher;
+                    this.latch = new CountDownLatch(nodes.size());
+
+                    for (Node node : nodes) {
+                        if (node.pending == 0) {
+                            submit(node);
+                        }
+                    }
+
+                    // Files downloaded earlier won't be reported by the downloader
+                    Iterator<Map.Entry<File, List<Node>>> it = waiting.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<File, List<Node>> entry = it.next();
+                        if (downloader == null || entry.getKey().exists()) {
+                            release(entry.getValue());
+                            it.remove();
                         }
-                        finished.incrementAndGet();
-                    });
+                    }
                 }
-                executor.shutdown();
-                while (!executor.isTerminated()) {
-                    checkInterrupted();
-                    Thread.sleep(100);
+
+                if (downloader != null) {
+                    synchronized (this) {
+                        downloadThread = Thread.currentThread();
+                    }
+                    downloading = true;
+                    downloader.setCompletionListener(this::downloaded);
+                    try {
+                        downloader.execute();
+                    } catch (Exception e) {
+                        // A failed task stops the downloads, which is not the error to report
+                        synchronized (this) {
+                            if (failure != null) {
+                                throw failure;
+                            }
+                        }
+                        throw e;
+                    } finally {
+                        synchronized (this) {
+                            downloadThread = null;
+                            if (failure != null) {
+                                Thread.interrupted();
+                            }
+                        }
+                        downloader.setCompletionListener(null);
+                        downloading = false;
+                    }
+
+                    synchronized (this) {
+                        for (List<Node> list : waiting.values()) {
+                            release(list);
+                        }
+                        waiting.clear();
+                    }
+                }
+
+                latch.await();
+
+                synchronized (this) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+
+                    if (slowest != null) {
+                        log.info(String.format("Executed %d task(s) in %d ms, slowest was %s (%d ms)",
+                                nodes.size(), System.currentTimeMillis() - start, slowest.task, slowest.elapsed));
+                    }
                 }
             } finally {
+                executor.shutdownNow();
                 running = null;
             }
         }
 
+        private synchronized void downloaded(File file) {
+            List<Node> list = waiting.remove(file);
+            if (list != null) {
+                release(list);
+            }
+        }
+
+        private void release(List<Node> list) {
+            for (Node node : list) {
+                if (--node.pending == 0) {
+                    submit(node);
+                }
+            }
+        }
+
+        private void submit(Node node) {
+            if (failure != null) {
+                return;
+            }
+
+            executor.submit(() -> {
+                running = node.task;
+                long start = System.currentTimeMillis();
+
+                try {
+                    node.task.execute(launcher);
+                } catch (Exception e) {
+                    fail(node, e);
+                    return;
+                } catch (Throwable t) {
+                    fail(node, new ExecutionException(t));
+                    return;
+                }
+
+                node.elapsed = System.currentTimeMillis() - start;
+                log.log(Level.FINE, "Executed {0} in {1} ms", new Object[]{node.task, node.elapsed});
+                finished.incrementAndGet();
+
+                synchronized (TaskQueue.this) {
+                    if (slowest == null || node.elapsed > slowest.elapsed) {
+                        slowest = node;
+                    }
+                    release(node.dependents);
+                }
+
+                latch.countDown();
+            });
+        }
+
+        private synchronized void fail(Node node, Exception e) {
+            if (failure != null) {
+                return;
+            }
+
+            log.log(Level.SEVERE, "Failed to execute task: " + node.task, e);
+            failure = e;
+            executor.shutdownNow();
+
+            // Don't wait for the rest of the files to download
+            if (downloadThread != null) {
+                downloadThread.interrupt();
+            }
+
+            while (latch.getCount() > 0) {
+                latch.countDown();
+            }
+        }
+
         public int getCount() {
             return count.get();
         }
@@ -134,5 +391,16 @@ public class Installer implements ProgressObservable {
             return finished.get();
         }
 
+        private static class Node {
+            private final InstallTask task;
+            private final List<Node> dependents = new ArrayList<>();
+            private int pending;
+            private long elapsed;
+
+            private Node(InstallTask task) {
+                this.task = task;
+            }
+        }
+
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.skcraft.launcher.Launcher;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+import org.tukaani.xz.LZMAInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+
+import static com.skcraft.launcher.util.SharedLocale.tr;
+
+/**
+ * Decompresses a downloaded .lzma file to its destination, checking the
+ * SHA-1 hash of the decompressed data as it is written.
+ */
+@Log
+public class LzmaDecompressor implements InstallTask {
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private final File from;
+    private final File to;
+    private final String hash;
+
+    /**
+     * Create a new task.
+     *
+     * @param from the compressed file, which is removed once it has been decompressed
+     * @param to the destination
+     * @param hash the SHA-1 hash of the decompressed file
+     */
+    public LzmaDecompressor(@NonNull File from, @NonNull File to, @NonNull String hash) {
+        this.from = from;
+        this.to = to;
+        this.hash = hash;
+    }
+
+    @Override
+    public void execute(Launcher launcher) throws IOException {
+        log.log(Level.INFO, "Decompressing to {0} (from {1})...", new Object[]{to.getAbsoluteFile(), from.getName()});
+
+        File tempFile = new File(to.getParentFile(), to.getName() + ".tmp");
+        to.getParentFile().mkdirs();
+
+        Hasher hasher = Hashing.sha1().newHasher();
+        InputStream in = new BufferedInputStream(new FileInputStream(from), BUFFER_SIZE);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+            try {
+                InputStream lzma = new LZMAInputStream(in);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = lzma.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                    hasher.putBytes(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        String actual = hasher.hash().toString();
+        if (!actual.equalsIgnoreCase(hash)) {
+            tempFile.delete();
+            throw new IOException(String.format(
+                    "Decompressed %s has SHA-1 %s, but %s was expected", from.getName(), actual, hash));
+        }
+
+        to.delete();
+        if (!tempFile.renameTo(to)) {
+            throw new IOException(String.format("Failed to rename %s to %s", tempFile, to));
+        }
+        from.delete();
+    }
+
+    @Override
+    public double getProgress() {
+        return -1;
+    }
+
+    @Override
+    public String getStatus() {
+        return tr("installer.decompressingFile", to.getName());
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps track of how well each download source performs so that the
+ * fastest working mirror is tried first.
+ * <p/>
+ * Sources are told apart by protocol, host and port. For each one, a
+ * moving average of the time until the response arrives, the transfer
+ * rate and the failure rate is kept, from which the expected time to
+ * download a file of a given size is estimated. Sources that haven't been
+ * used yet are tried before any others so that every mirror gets a chance.
+ */
+@Log
+public class MirrorManager {
+
+    private static final double SMOOTHING = 0.3;
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final long MIN_HEDGE_DELAY = 1000;
+    private static final long DEFAULT_HEDGE_DELAY = 3000;
+    private static final double MAX_FAILURE_RATE = 0.95;
+
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    /**
+     * Sort a list of URLs for the same file from the best to the worst
+     * source. URLs from sources that perform the same keep their order.
+     *
+     * @param urls the URLs
+     * @param size the expected size of the file
+     * @return a new list
+     */
+    public synchronized List<URL> order(@NonNull List<URL> urls, final long size) {
+        List<URL> ordered = new ArrayList<URL>(urls);
+        if (ordered.size() > 1) {
+            Collections.sort(ordered, new Comparator<URL>() {
+                @Override
+                public int compare(URL o1, URL o2) {
+                    return Double.compare(getSource(o1).estimate(size), getSource(o2).estimate(size));
+                }
+            });
+        }
+        return ordered;
+    }
+
+    /**
+     * Get how long to wait for a response from the given URL before also
+     * asking the next source.
+     *
+     * @param url the URL
+     * @return the delay in milliseconds
+     */
+    public synchronized long getHedgeDelay(@NonNull URL url) {
+        Source source = getSource(url);
+        if (source.samples == 0) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+        return Math.max(MIN_HEDGE_DELAY, (long) (source.latency * 4));
+    }
+
+    /**
+     * Record the time it took for a source to respond.
+     *
+     * @param url the URL
+     * @param millis the time in milliseconds
+     */
+    public synchronized void recordResponse(@NonNull URL url, long millis) {
+        Source source = getSource(url);
+        source.latency = source.samples == 0 ? millis : smooth(source.latency, millis);
+        source.samples++;
+    }
+
+    /**
+     * Record that a source has not responded within the given time, so
+     * that other downloads stop picking it before it does.
+     *
+     * @param url the URL
+     * @param millis the time waited so far, in milliseconds
+     */
+    public synchronized void recordSlow(@NonNull URL url, long millis) {
+        Source source = getSource(url);
+        if (millis > source.latency) {
+            recordResponse(url, millis);
+        }
+    }
+
+    /**
+     * Record that a file was downloaded from a source.
+     *
+     * @param url the URL
+     * @param bytes the size of the file
+     * @param millis the time spent transferring the body, in milliseconds
+     */
+    public synchronized void recordSuccess(@NonNull URL url, long bytes, long millis) {
+        Source source = getSource(url);
+        double throughput = bytes / (Math.max(1, millis) / 1000.0);
+        source.throughput = source.throughput <= 0 ? throughput : smooth(source.throughput, throughput);
+        source.failureRate = smooth(source.failureRate, 0);
+        source.samples++;
+    }
+
+    /**
+     * Record that a download from a source failed.
+     *
+     * @param url the URL
+     */
+    public synchronized void recordFailure(@NonNull URL url) {
+        Source source = getSource(url);
+        source.failureRate = source.samples == 0 ? 1 : smooth(source.failureRate, 1);
+        source.samples++;
+        source.failures++;
+    }
+
+    /**
+     * Measure how long it takes to connect to every source that hasn't
+     * been seen yet, in the background.
+     *
+     * @param urls a URL for each source
+     * @param executor the executor to run the probes on
+     */
+    public void probe(@NonNull Collection<URL> urls, @NonNull Executor executor) {
+        Set<String> probed = new LinkedHashSet<String>();
+        for (final URL url : urls) {
+            synchronized (this) {
+                if (getSource(url).samples > 0 || !probed.add(getKey(url))) {
+                    continue;
+                }
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe(url);
+                }
+            });
+        }
+    }
+
+    private void probe(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        long start = System.currentTimeMillis();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(url.getHost(), port), PROBE_TIMEOUT);
+            recordResponse(url, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.info("Couldn't connect to " + getKey(url) + ": " + e.getMessage());
+            recordFailure(url);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Log what is known about every source.
+     */
+    public synchronized void logStats() {
+        for (Map.Entry<String, Source> entry : sources.entrySet()) {
+            Source source = entry.getValue();
+            log.info(String.format("%s: %.0f ms to respond, %.0f KB/s, %d failure(s) (%.0f%% recently)",
+                    entry.getKey(), source.latency, source.throughput / 1024,
+                    source.failures, source.failureRate * 100));
+        }
+    }
+
+    private Source getSource(URL url) {
+        String key = getKey(url);
+        Source source = sources.get(key);
+        if (source == null) {
+            source = new Source();
+            sources.put(key, source);
+        }
+        return source;
+    }
+
+    private static String getKey(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+
+    private static double smooth(double current, double sample) {
+        return current + SMOOTHING * (sample - current);
+    }
+
+    private static class Source {
+        private int samples;
+        private int failures;
+        private double latency;
+        private double throughput;
+        private double failureRate;
+
+        /**
+         * Estimate how long a download of the given size would take,
+         * counting the retries that failures would cause.
+         */
+        private double estimate(long size) {
+            if (samples == 0) {
+                return 0;
+            }
+
+            double time = latency;
+            if (throughput > 0) {
+                time += size / throughput * 1000;
+            }
+            return (time + 1) / (1 - Math.min(MAX_FAILURE_RATE, failureRate));
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.Data;
+
+import java.io.IOException;
+
+/**
+ * Decides whether a failed request is tried again, and after how long.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Get how long to wait before making the request to the same source
+     * again.
+     *
+     * @param failure the failure
+     * @return the delay in milliseconds, or -1 to stop trying this source
+     */
+    long getRetryDelay(Failure failure);
+
+    /**
+     * A failed attempt at a request.
+     */
+    @Data
+    class Failure {
+        /**
+         * The number of attempts made to this source so far, including
+         * this one.
+         */
+        private final int attempt;
+
+        /**
+         * The response code, or -1 if no response was received.
+         */
+        private final int responseCode;
+
+        /**
+         * The delay asked for by a Retry-After header in milliseconds,
+         * or -1 if there was none.
+         */
+        private final long retryAfter;
+
+        private final IOException cause;
+    }
+
+}
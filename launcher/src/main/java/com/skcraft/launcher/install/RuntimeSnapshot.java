@@ -0,0 +1,132 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.skcraft.launcher.model.java.JavaFile;
+import com.skcraft.launcher.model.java.JavaFileDownload;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of a Java runtime as they were when it was last installed
+ * successfully, so that the next update only has to look at the files
+ * that have changed in the runtime's manifest since then.
+ */
+@Data
+public class RuntimeSnapshot {
+
+    private Map<String, Entry> files = new HashMap<String, Entry>();
+
+    /**
+     * Create a snapshot of the files in a runtime manifest.
+     *
+     * @param files the files
+     * @return the snapshot
+     */
+    public static RuntimeSnapshot of(@NonNull JavaFile[] files) {
+        RuntimeSnapshot snapshot = new RuntimeSnapshot();
+        for (JavaFile jf : files) {
+            Entry entry = new Entry();
+            entry.setType(jf.getType());
+            entry.setExecutable(jf.isExecutable());
+            JavaFileDownload raw = jf.getDownloads() != null ? jf.getDownloads().getRaw() : null;
+            if (raw != null) {
+                entry.setHash(raw.getHash());
+            }
+            snapshot.getFiles().put(jf.getPath(), entry);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Read the snapshot kept for a runtime directory.
+     *
+     * @param jvmDir the runtime directory
+     * @return the snapshot, or null if there is none
+     */
+    public static RuntimeSnapshot read(@NonNull File jvmDir) {
+        File path = getPath(jvmDir);
+        if (!path.exists()) {
+            return null;
+        }
+
+        RuntimeSnapshot snapshot = Persistence.read(path, RuntimeSnapshot.class);
+        return snapshot.getFiles().isEmpty() ? null : snapshot;
+    }
+
+    /**
+     * Write this snapshot for a runtime directory.
+     *
+     * @param jvmDir the runtime directory
+     * @throws IOException on I/O error
+     */
+    public void write(@NonNull File jvmDir) throws IOException {
+        Persistence.write(getPath(jvmDir), this);
+    }
+
+    /**
+     * Check whether a file is the same in this snapshot and another.
+     *
+     * @param path the path of the file
+     * @param other the other snapshot
+     * @return true if the file is in both and hasn't changed
+     */
+    public boolean isUnchanged(@NonNull String path, @NonNull RuntimeSnapshot other) {
+        Entry entry = files.get(path);
+        return entry != null && entry.equals(other.getFiles().get(path));
+    }
+
+    /**
+     * Get the paths in this snapshot that are gone from a newer one, or
+     * that have changed from a file to a directory or the other way
+     * around, with the deepest paths first.
+     *
+     * @param newer the newer snapshot
+     * @return a list of paths
+     */
+    public List<String> getRemoved(@NonNull RuntimeSnapshot newer) {
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : files.entrySet()) {
+            Entry newEntry = newer.getFiles().get(entry.getKey());
+            if (newEntry == null || !String.valueOf(newEntry.getType()).equals(entry.getValue().getType())) {
+                removed.add(entry.getKey());
+            }
+        }
+
+        // Remove the contents of directories before the directories themselves
+        Collections.sort(removed, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return o2.compareTo(o1);
+            }
+        });
+        return removed;
+    }
+
+    private static File getPath(File jvmDir) {
+        // Kept next to the runtime directory so that cleaning the runtime doesn't remove it
+        return new File(jvmDir.getParentFile(), jvmDir.getName() + "_snapshot.json");
+    }
+
+    @Data
+    public static class Entry {
+        private String type;
+        private String hash;
+        private boolean executable;
+    }
+
+}
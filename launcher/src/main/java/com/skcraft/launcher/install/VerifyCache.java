@@ -0,0 +1,95 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.skcraft.launcher.util.FileUtils;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Remembers the hashes of installed files so that they only have to be
+ * read again when their size, modification time or inode changes.
+ */
+@Data
+public class VerifyCache {
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    @JsonIgnore
+    private Set<String> used = new HashSet<String>();
+
+    /**
+     * Get the SHA-1 hash of a file, hashing it only if it has changed since
+     * the last time it was seen under the given key.
+     *
+     * @param key the key, usually the path relative to the install directory
+     * @param file the file, which must exist
+     * @return the hash
+     * @throws IOException on I/O error
+     */
+    public String getHash(@NonNull String key, @NonNull File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String fileKey = attrs.fileKey() != null ? attrs.fileKey().toString() : null;
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            used.add(key);
+        }
+
+        if (entry != null && entry.matches(size, lastModified, fileKey)) {
+            return entry.getHash();
+        }
+
+        String hash = FileUtils.getShaHash(file);
+
+        entry = new Entry();
+        entry.setSize(size);
+        entry.setLastModified(lastModified);
+        entry.setFileKey(fileKey);
+        entry.setHash(hash);
+
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Forget about every entry that was not looked up since this cache
+     * was loaded.
+     */
+    public synchronized void prune() {
+        entries.keySet().retainAll(used);
+    }
+
+    @Data
+    public static class Entry {
+        private long size;
+        private long lastModified;
+        private String fileKey;
+        private String hash;
+
+        public boolean matches(long size, long lastModified, String fileKey) {
+            return this.size == size && this.lastModified == lastModified
+                    && Objects.equals(this.fileKey, fileKey);
+        }
+    }
+}
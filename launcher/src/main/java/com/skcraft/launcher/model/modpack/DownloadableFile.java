@@ -1,5 +1,6 @@
 package com.skcraft.launcher.model.modpack;
 
+import com.skcraft.launcher.install.DownloadPriority;
 import com.skcraft.launcher.install.Installer;
 import com.skcraft.launcher.model.minecraft.Side;
 import lombok.Data;
@@ -8,8 +9,7 @@ import lombok.NonNull;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
-
-import static com.skcraft.launcher.LauncherUtils.concat;
+import java.util.List;
 
 @Data
 public class DownloadableFile {
@@ -20,9 +20,9 @@ public class DownloadableFile {
 	private int size;
 
 	public LocalFile download(@NonNull Installer installer, Manifest manifest) throws MalformedURLException {
-		URL url = concat(manifest.getObjectsUrl(), getLocation());
+		List<URL> urls = manifest.getObjectUrls(getLocation());
 
-		File local = installer.getDownloader().download(url, hash, size, name);
+		File local = installer.getDownloader().download(urls, hash, size, name, hash, DownloadPriority.CRITICAL);
 		return new LocalFile(local, name);
 	}
 
@@ -7,10 +7,9 @@
 package com.skcraft.launcher.model.modpack;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
+import com.skcraft.launcher.ObjectStore;
 import com.skcraft.launcher.install.*;
+import com.skcraft.launcher.util.FileUtils;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NonNull;
@@ -19,15 +18,15 @@ import org.apache.commons.io.FilenameUtils;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.Locale;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.skcraft.launcher.LauncherUtils.concat;
 
 @Data
 @EqualsAndHashCode(callSuper = false)
 public class FileInstall extends ManifestEntry {
 
-    private static HashFunction hf = Hashing.sha1();
     private String version;
     private String hash;
     private String location;
@@ -55,22 +54,38 @@ public class FileInstall extends ManifestEntry {
         String targetPath = getTargetPath();
         File targetFile = new File(extras.getContentDir(), targetPath);
         String fileVersion = getImpliedVersion();
-        URL url = concat(getManifest().getObjectsUrl(), getLocation());
+        List<URL> urls = getManifest().getObjectUrls(getLocation());
+        ObjectStore objectStore = extras.getObjectStore();
 
-        if (shouldUpdate(cache, targetFile)) {
+        if (hash != null && objectStore != null) {
+            extras.getObjectHashes().add(hash);
+        }
+
+        if (shouldUpdate(cache, extras.getVerifyCache(), targetFile)) {
             long size = this.size;
             if (size <= 0) {
                 size = 10 * 1024;
             }
 
-            File tempFile = installer.getDownloader().download(url, fileVersion, size, to);
-            installer.queue(new InstallLogFileMover(log, tempFile, targetFile));
+            if (hash != null && objectStore != null) {
+                // Only fetch objects that no other instance has downloaded yet
+                File tempFile = null;
+                if (!objectStore.contains(hash)) {
+                    tempFile = installer.getDownloader().download(urls, fileVersion, size, to, hash);
+                }
+                // The game may rewrite other files in place, which would change the object for every instance
+                boolean link = !isUserFile() && targetPath.toLowerCase(Locale.ROOT).endsWith(".jar");
+                installer.queue(new InstallLogObjectLinker(log, objectStore, hash, tempFile, targetFile, link), tempFile);
+            } else {
+                File tempFile = installer.getDownloader().download(urls, fileVersion, size, to, hash);
+                installer.queue(new InstallLogFileMover(log, tempFile, targetFile), tempFile);
+            }
         } else {
             log.add(to, to);
         }
     }
 
-    private boolean shouldUpdate(UpdateCache cache, File targetFile) throws IOException {
+    private boolean shouldUpdate(UpdateCache cache, VerifyCache verifyCache, File targetFile) throws IOException {
         if (targetFile.exists() && isUserFile()) {
             return false;
         }
@@ -80,7 +95,9 @@ public class FileInstall extends ManifestEntry {
         }
 
         if (hash != null) {
-            String existingHash = Files.hash(targetFile, hf).toString();
+            String existingHash = verifyCache != null
+                    ? verifyCache.getHash(FilenameUtils.normalize(getTargetPath()), targetFile)
+                    : FileUtils.getShaHash(targetFile);
             if (existingHash.equalsIgnoreCase(hash)) {
                 return false;
             }
@@ -19,16 +19,20 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.java.Log;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 
 @Data
 @EqualsAndHashCode(callSuper = true)
+@Log
 public class Manifest extends BaseManifest {
 
     public static final int MIN_PROTOCOL_VERSION = 3;
@@ -37,6 +41,8 @@ public class Manifest extends BaseManifest {
     private URL baseUrl;
     private String librariesLocation;
     private String objectsLocation;
+    private List<String> librariesMirrors;
+    private List<String> objectsMirrors;
     private String gameVersion;
     @JsonProperty("launch")
     private LaunchModifier launchModifier;
@@ -74,6 +80,60 @@ public class Manifest extends BaseManifest {
         }
     }
 
+    /**
+     * Get every URL that libraries can be downloaded from, starting with
+     * the libraries location and followed by each mirror in order.
+     *
+     * @return a list of base URLs
+     */
+    @JsonIgnore
+    public List<URL> getLibrariesUrls() {
+        List<URL> urls = new ArrayList<URL>();
+        URL url = getLibrariesUrl();
+        if (url != null) {
+            urls.add(url);
+        }
+        urls.addAll(getMirrorUrls(librariesMirrors));
+        return urls;
+    }
+
+    /**
+     * Get every URL that an object can be downloaded from, starting with
+     * the objects location and followed by each mirror in order.
+     *
+     * @param location the location of the object, relative to the objects location
+     * @return a list of URLs
+     * @throws MalformedURLException thrown if a URL could not be built
+     */
+    @JsonIgnore
+    public List<URL> getObjectUrls(String location) throws MalformedURLException {
+        List<URL> bases = new ArrayList<URL>();
+        bases.add(getObjectsUrl());
+        bases.addAll(getMirrorUrls(objectsMirrors));
+
+        // An absolute location resolves to the same URL on every mirror
+        Map<String, URL> urls = new LinkedHashMap<String, URL>();
+        for (URL base : bases) {
+            URL url = LauncherUtils.concat(base, location);
+            urls.put(url.toExternalForm(), url);
+        }
+        return new ArrayList<URL>(urls.values());
+    }
+
+    private List<URL> getMirrorUrls(List<String> mirrors) {
+        List<URL> urls = new ArrayList<URL>();
+        if (mirrors != null) {
+            for (String mirror : mirrors) {
+                try {
+                    urls.add(LauncherUtils.concat(baseUrl, mirror.endsWith("/") ? mirror : mirror + "/"));
+                } catch (MalformedURLException e) {
+                    log.log(Level.WARNING, "Skipping invalid mirror " + mirror, e);
+                }
+            }
+        }
+        return urls;
+    }
+
     public void updateName(String name) {
         if (name != null) {
             setName(name);
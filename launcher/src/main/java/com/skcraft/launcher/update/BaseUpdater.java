@@ -13,6 +13,7 @@ import com.skcraft.launcher.AssetsRoot;
 import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.LauncherException;
+import com.skcraft.launcher.ObjectStore;
 import com.skcraft.launcher.dialog.FeatureSelectionDialog;
 import com.skcraft.launcher.dialog.ProgressDialog;
 import com.skcraft.launcher.install.*;
@@ -43,6 +44,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
@@ -80,27 +83,28 @@ public abstract class BaseUpdater {
     }
 
     protected Manifest installPackage(@NonNull Installer installer, @NonNull Instance instance) throws Exception {
-        final File contentDir = instance.getContentDir();
-        final File logPath = new File(instance.getDir(), "install_log.json");
-        final File cachePath = new File(instance.getDir(), "update_cache.json");
-        final File featuresPath = new File(instance.getDir(), "features.json");
-
-        // Make sure the temp dir exists
-        installer.getTempDir().mkdirs();
-
-        final InstallLog previousLog = Persistence.read(logPath, InstallLog.class);
-        final InstallLog currentLog = new InstallLog();
-        currentLog.setBaseDir(contentDir);
-        final UpdateCache updateCache = Persistence.read(cachePath, UpdateCache.class);
-        final FeatureCache featuresCache = Persistence.read(featuresPath, FeatureCache.class);
+        Manifest manifest = readPackageManifest(instance);
+        installPackage(installer, instance, manifest);
+        return manifest;
+    }
 
+    /**
+     * Download and check the package manifest of an instance, without
+     * installing anything from it yet.
+     *
+     * @param instance the instance
+     * @return the manifest
+     * @throws IOException thrown on I/O error
+     * @throws InterruptedException thrown on interruption
+     * @throws LauncherException thrown if the launcher is too old for the package
+     */
+    protected Manifest readPackageManifest(@NonNull Instance instance)
+            throws IOException, InterruptedException, LauncherException {
         Manifest manifest = HttpRequest
                 .get(instance.getManifestURL())
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .saveContent(instance.getManifestPath())
-                .asJson(Manifest.class);
+                .asJson(Manifest.class, instance.getManifestPath());
 
         if (manifest.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
             throw new LauncherException("Update required", SharedLocale.tr("errors.updateRequiredError"));
@@ -110,7 +114,46 @@ public abstract class BaseUpdater {
             manifest.setBaseUrl(instance.getManifestURL());
         }
 
+        return manifest;
+    }
+
+    protected void installPackage(@NonNull Installer installer, @NonNull Instance instance,
+                                  @NonNull Manifest manifest) throws Exception {
+        installPackage(installer, instance, manifest, null);
+    }
+
+    /**
+     * Queue the files of a package. If the package has features, the files
+     * that don't depend on them start downloading while the user is still
+     * choosing which ones they want.
+     *
+     * @param installer the installer
+     * @param instance the instance
+     * @param manifest the package manifest
+     * @param whileSelecting queues more files that don't depend on the features,
+     *                       such as the game's, to be downloaded during the selection, or null
+     * @throws Exception on error
+     */
+    protected void installPackage(@NonNull Installer installer, @NonNull Instance instance,
+                                  @NonNull Manifest manifest, Callable<?> whileSelecting) throws Exception {
+        final File contentDir = instance.getContentDir();
+        final File logPath = new File(instance.getDir(), "install_log.json");
+        final File cachePath = new File(instance.getDir(), "update_cache.json");
+        final File featuresPath = new File(instance.getDir(), "features.json");
+        final File verifyPath = new File(instance.getDir(), "verify_cache.json");
+
+        // Make sure the temp dir exists
+        installer.getTempDir().mkdirs();
+
+        final InstallLog previousLog = Persistence.read(logPath, InstallLog.class);
+        final InstallLog currentLog = new InstallLog();
+        currentLog.setBaseDir(contentDir);
+        final UpdateCache updateCache = Persistence.read(cachePath, UpdateCache.class);
+        final FeatureCache featuresCache = Persistence.read(featuresPath, FeatureCache.class);
+        final VerifyCache verifyCache = Persistence.read(verifyPath, VerifyCache.class);
+
         final List<Feature> features = manifest.getFeatures();
+        final CountDownLatch selection = new CountDownLatch(features.isEmpty() ? 0 : 1);
         if (!features.isEmpty()) {
             for (Feature feature : features) {
                 Boolean last = featuresCache.getSelected().get(feature.getName());
@@ -124,38 +167,68 @@ public abstract class BaseUpdater {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
-                    new FeatureSelectionDialog(ProgressDialog.getLastDialog(), features, BaseUpdater.this)
-                            .setVisible(true);
+                    // The dialog is modal, so this returns once it has been closed
+                    try {
+                        new FeatureSelectionDialog(ProgressDialog.getLastDialog(), features, BaseUpdater.this)
+                                .setVisible(true);
+                    } finally {
+                        selection.countDown();
+                    }
                 }
             });
+        }
+
+        final InstallExtras extras;
+        try {
+            // Download any extra processing files for each loader
+            HashMap<String, LocalLoader> loaders = Maps.newHashMap();
+            for (Map.Entry<String, LoaderManifest> entry : manifest.getLoaders().entrySet()) {
+                HashMap<String, DownloadableFile.LocalFile> localFilesMap = Maps.newHashMap();
 
-            synchronized (this) {
-                this.wait();
+                for (DownloadableFile file : entry.getValue().getDownloadableFiles()) {
+                    if (file.getSide() != Side.CLIENT) continue;
+
+                    DownloadableFile.LocalFile localFile = file.download(installer, manifest);
+                    localFilesMap.put(localFile.getName(), localFile);
+                }
+
+                loaders.put(entry.getKey(), new LocalLoader(entry.getValue(), localFilesMap));
             }
 
-            for (Feature feature : features) {
-                featuresCache.getSelected().put(Strings.nullToEmpty(feature.getName()), feature.isSelected());
+            extras = new InstallExtras(contentDir, loaders, launcher.getObjectStore(), verifyCache);
+            List<ManifestEntry> optional = new ArrayList<ManifestEntry>();
+            for (ManifestEntry entry : manifest.getTasks()) {
+                if (entry.getWhen() != null) {
+                    optional.add(entry);
+                } else {
+                    entry.install(installer, currentLog, updateCache, extras);
+                }
             }
-        }
 
-        // Download any extra processing files for each loader
-        HashMap<String, LocalLoader> loaders = Maps.newHashMap();
-        for (Map.Entry<String, LoaderManifest> entry : manifest.getLoaders().entrySet()) {
-            HashMap<String, DownloadableFile.LocalFile> localFilesMap = Maps.newHashMap();
+            if (selection.getCount() > 0) {
+                installer.prefetch();
+            }
 
-            for (DownloadableFile file : entry.getValue().getDownloadableFiles()) {
-                if (file.getSide() != Side.CLIENT) continue;
+            if (whileSelecting != null) {
+                whileSelecting.call();
+            }
 
-                DownloadableFile.LocalFile localFile = file.download(installer, manifest);
-                localFilesMap.put(localFile.getName(), localFile);
+            if (selection.getCount() > 0) {
+                installer.prefetch();
+                selection.await();
             }
 
-            loaders.put(entry.getKey(), new LocalLoader(entry.getValue(), localFilesMap));
-        }
+            for (Feature feature : features) {
+                featuresCache.getSelected().put(Strings.nullToEmpty(feature.getName()), feature.isSelected());
+            }
 
-        InstallExtras extras = new InstallExtras(contentDir, loaders);
-        for (ManifestEntry entry : manifest.getTasks()) {
-            entry.install(installer, currentLog, updateCache, extras);
+            // Only files that depend on the features have to wait for the user's choice
+            for (ManifestEntry entry : optional) {
+                entry.install(installer, currentLog, updateCache, extras);
+            }
+        } catch (Exception e) {
+            installer.cancelPrefetch();
+            throw e;
         }
 
         executeOnCompletion.add(new Runnable() {
@@ -172,47 +245,89 @@ public abstract class BaseUpdater {
                 writeDataFile(logPath, currentLog);
                 writeDataFile(cachePath, updateCache);
                 writeDataFile(featuresPath, featuresCache);
+
+                verifyCache.prune();
+                writeDataFile(verifyPath, verifyCache);
+
+                ObjectStore objectStore = extras.getObjectStore();
+                if (objectStore != null) {
+                    try {
+                        objectStore.setReferences(instance.getDir(), extras.getObjectHashes());
+                        objectStore.sweep();
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Failed to record the objects used by " + instance.getName(), e);
+                    }
+                }
             }
         });
-
-        return manifest;
     }
 
+    /**
+     * Queue the files of a Java runtime that are missing or out of date.
+     *
+     * @param installer the installer
+     * @param jvmDir the runtime directory
+     * @param files the files in the runtime's manifest
+     * @param previous the runtime as it was last installed, whose unchanged files
+     *                 are trusted without being hashed, or null to check every file
+     */
     protected void installJvm(@NonNull Installer installer,
-                              @NonNull File jvmDir,
-                              @NonNull JavaFile[] files) throws InterruptedException, IOException {
+                              @NonNull final File jvmDir,
+                              @NonNull JavaFile[] files,
+                              RuntimeSnapshot previous) throws InterruptedException, IOException {
+        // Kept next to the runtime directory so that cleaning the runtime doesn't remove it
+        File verifyPath = new File(jvmDir.getParentFile(), jvmDir.getName() + "_verify_cache.json");
+        VerifyCache verifyCache = Persistence.read(verifyPath, VerifyCache.class);
+        final RuntimeSnapshot snapshot = RuntimeSnapshot.of(files);
+        int unchanged = 0;
+
         for (JavaFile jf : files) {
             File output = new File(jvmDir, jf.getPath());
             switch(jf.getType()) {
                 case "file":
                     checkInterrupted();
 
-                    // Not done: LZMA download
                     JavaFileDownload raw = jf.getDownloads().getRaw();
+                    JavaFileDownload lzma = jf.getDownloads().getLzma();
                     if (raw == null) {
                         throw new InterruptedException("No raw file for " + jf.getPath());
                     }
 
+                    if (previous != null && previous.isUnchanged(jf.getPath(), snapshot) && output.isFile()) {
+                        unchanged++;
+                        break;
+                    }
+
                     if (output.exists()) {
                         // Check SHA1
-                        if (FileUtils.getShaHash(output).equals(raw.getHash())) {
+                        if (verifyCache.getHash(jf.getPath(), output).equals(raw.getHash())) {
                             System.out.println("File " + output.getAbsolutePath() + " OK");
                             break;
                         }
                     }
 
-                    File tempFile = installer.getDownloader().download(url(raw.getUrl()), "", raw.getSize(), output.getName());
-                    installer.queue(new FileMover(tempFile, output));
-                    if (raw.getHash() != null) {
-                        installer.queue(new FileVerify(output, output.getName(), raw.getHash()));
+                    InstallTask task;
+                    if (lzma != null) {
+                        // Usually a third of the size, and checked against the raw hash once decompressed
+                        File tempFile = installer.getDownloader().download(url(lzma.getUrl()), "", lzma.getSize(),
+                                output.getName(), lzma.getHash(), DownloadPriority.CRITICAL);
+                        task = new LzmaDecompressor(tempFile, output, raw.getHash());
+                        installer.queue(task, tempFile);
+
+                        log.info("Installing " + output.getName() + " from " + lzma.getUrl());
+                    } else {
+                        File tempFile = installer.getDownloader().download(url(raw.getUrl()), "", raw.getSize(),
+                                output.getName(), raw.getHash(), DownloadPriority.CRITICAL);
+                        task = new FileMover(tempFile, output);
+                        installer.queue(task, tempFile);
+
+                        log.info("Installing " + output.getName() + " from " + raw.getUrl());
                     }
 
                     if (jf.isExecutable()) {
-                        installer.queue(new FilePermissions(output));
+                        installer.queueAfter(task, new FilePermissions(output));
                     }
 
-                    log.info("Installing " + output.getName() + " from " + raw.getUrl());
-
                     break;
                 case "directory":
                     if (output.isFile()) {
@@ -229,6 +344,25 @@ public abstract class BaseUpdater {
                     break;
             }
         }
+
+        if (previous != null) {
+            log.info(unchanged + " runtime file(s) are unchanged since the last update");
+        } else {
+            // Only every file has been looked up if none were skipped
+            verifyCache.prune();
+        }
+        writeDataFile(verifyPath, verifyCache);
+
+        executeOnCompletion.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.write(jvmDir);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to save the runtime snapshot", e);
+                }
+            }
+        });
     }
 
     protected void installJar(@NonNull Installer installer,
@@ -240,11 +374,9 @@ public abstract class BaseUpdater {
             long size = artifact.getSize();
             if (size <= 0) size = JAR_SIZE_ESTIMATE;
 
-            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName());
-            installer.queue(new FileMover(tempFile, jarFile));
-            if (artifact.getHash() != null) {
-                installer.queue(new FileVerify(jarFile, jarFile.getName(), artifact.getHash()));
-            }
+            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName(), artifact.getHash(),
+                    DownloadPriority.CRITICAL);
+            installer.queue(new FileMover(tempFile, jarFile), tempFile);
             log.info("Installing " + jarFile.getName() + " from " + url);
         }
     }
@@ -253,15 +385,33 @@ public abstract class BaseUpdater {
                                  @NonNull VersionManifest versionManifest,
                                  @NonNull URL indexUrl,
                                  @NonNull List<URL> sources) throws IOException, InterruptedException {
-        AssetsRoot assetsRoot = launcher.getAssets();
+        installAssets(installer, fetchAssetsIndex(versionManifest, indexUrl), sources);
+    }
 
-        AssetsIndex index = HttpRequest
+    /**
+     * Download the asset index of a version, keeping a copy in the assets
+     * directory for the game to use.
+     *
+     * @param versionManifest the version manifest
+     * @param indexUrl the URL of the asset index
+     * @return the asset index
+     * @throws IOException thrown on I/O error
+     * @throws InterruptedException thrown on interruption
+     */
+    protected AssetsIndex fetchAssetsIndex(@NonNull VersionManifest versionManifest,
+                                           @NonNull URL indexUrl) throws IOException, InterruptedException {
+        return HttpRequest
                 .get(indexUrl)
+                .useCache()
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .saveContent(assetsRoot.getIndexPath(versionManifest))
-                .asJson(AssetsIndex.class);
+                .asJson(AssetsIndex.class, launcher.getAssets().getIndexPath(versionManifest));
+    }
+
+    protected void installAssets(@NonNull Installer installer,
+                                 @NonNull AssetsIndex index,
+                                 @NonNull List<URL> sources) throws InterruptedException {
+        AssetsRoot assetsRoot = launcher.getAssets();
 
         // Keep track of duplicates
         Set<String> downloading = new HashSet<String>();
@@ -283,9 +433,10 @@ public abstract class BaseUpdater {
                     }
                 }
 
+                // The game can start without every asset, so let everything else go first
                 File tempFile = installer.getDownloader().download(
-                        urls, "", entry.getValue().getSize(), entry.getKey());
-                installer.queue(new FileMover(tempFile, targetFile));
+                        urls, "", entry.getValue().getSize(), entry.getKey(), hash, DownloadPriority.BACKGROUND);
+                installer.queue(new FileMover(tempFile, targetFile), tempFile);
                 log.info("Fetching " + path + " from " + urls);
                 downloading.add(path);
             }
@@ -328,12 +479,9 @@ public abstract class BaseUpdater {
                     }
 
                     File tempFile = installer.getDownloader().download(urls, "", size,
-                            library.getName() + ".jar");
+                            library.getName() + ".jar", artifact.getSha1(), DownloadPriority.CRITICAL);
                     log.info("Fetching " + path + " from " + urls);
-                    installer.queue(new FileMover(tempFile, targetFile));
-                    if (artifact.getSha1() != null) {
-                        installer.queue(new FileVerify(targetFile, library.getName(), artifact.getSha1()));
-                    }
+                    installer.queue(new FileMover(tempFile, targetFile), tempFile);
                 }
             }
         }
@@ -348,10 +496,11 @@ public abstract class BaseUpdater {
 
             if (embeddedConfig == null) {
                 // No embedded config, just use whatever the server gives us
-                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(), file.getId());
+                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(),
+                        file.getId(), file.getHash(), DownloadPriority.CRITICAL);
 
                 log.info("Downloading logging config " + file.getId() + " from " + file.getUrl());
-                installer.queue(new FileMover(tempFile, targetFile));
+                installer.queue(new FileMover(tempFile, targetFile), tempFile);
             } else if (!targetFile.exists() || FileUtils.getShaHash(targetFile).equals(file.getHash())) {
                 // Use our embedded replacement
 
@@ -8,17 +8,24 @@ package com.skcraft.launcher.update;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.skcraft.concurrency.DefaultProgress;
-import com.skcraft.concurrency.ProgressFilter;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.LauncherException;
+import com.skcraft.launcher.RuntimeStore;
 import com.skcraft.launcher.install.Installer;
+import com.skcraft.launcher.install.RuntimeSnapshot;
 import com.skcraft.launcher.model.java.JavaFile;
 import com.skcraft.launcher.model.java.JavaManifest;
 import com.skcraft.launcher.model.java.JavaVersion;
 import com.skcraft.launcher.model.java.JavaVersionManifest;
+import com.skcraft.launcher.model.minecraft.AssetsIndex;
 import com.skcraft.launcher.model.minecraft.ReleaseList;
 import com.skcraft.launcher.model.minecraft.Version;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
@@ -41,6 +48,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
@@ -64,7 +72,7 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
     public Updater(@NonNull Launcher launcher, @NonNull Instance instance) {
         super(launcher);
 
-        this.installer = new Installer(launcher.getInstallerDir());
+        this.installer = new Installer(launcher.getInstallerDir(), "instance-" + instance.getDir().getName());
         this.launcher = launcher;
         this.instance = instance;
 
@@ -121,33 +129,47 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
      */
     private VersionManifest readVersionManifest(Manifest manifest) throws IOException, InterruptedException {
         VersionManifest version = manifest.getVersionManifest();
-        URL url = url(launcher.getProperties().getProperty("versionManifestUrl"));
 
-        if (version == null) {
-            version = fetchVersionManifest(url, manifest);
-        }
-
-        if (version.getDownloads().isEmpty()) {
-            // Backwards compatibility hack
+        if (version == null || version.getDownloads().isEmpty()) {
+            URL url = url(launcher.getProperties().getProperty("versionManifestUrl"));
             VersionManifest otherManifest = fetchVersionManifest(url, manifest);
 
-            version.setDownloads(otherManifest.getDownloads());
-            version.setAssetIndex(otherManifest.getAssetIndex());
+            if (version == null) {
+                version = otherManifest;
+            } else {
+                // Backwards compatibility hack
+                version.setDownloads(otherManifest.getDownloads());
+                version.setAssetIndex(otherManifest.getAssetIndex());
+            }
         }
 
         mapper.writeValue(instance.getVersionPath(), version);
         return version;
     }
 
+    private JavaManifest findJavaManifest() throws Exception {
+        for (Map.Entry<String, JavaManifest[]> entry : launcher.getInstances().getJavaVersions().entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(instance.getJavaRuntime())) {
+                if (entry.getValue().length == 0) {
+                    throw new Exception("No valid candidate for Java runtime \"" + instance.getJavaRuntime() + "\"");
+                }
+
+                return entry.getValue()[0];
+            }
+        }
+
+        return null;
+    }
+
     private JavaFile[] readJavaManifest(JavaManifest manifest) throws IOException, InterruptedException {
         ArrayList<JavaFile> javaFiles = new ArrayList<>();
 
         URL url = url(manifest.getManifest().getUrl());
 
         JavaVersionManifest results = HttpRequest.get(url)
+                .useCache()
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
                 .asJson(JavaVersionManifest.class);
 
         for(Map.Entry<String, JavaFile> entry : results.files.entrySet()) {
@@ -161,27 +183,44 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
 
     private static VersionManifest fetchVersionManifest(URL url, Manifest manifest) throws IOException, InterruptedException {
         ReleaseList releases = HttpRequest.get(url)
+                .useCache()
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
                 .asJson(ReleaseList.class);
 
         Version relVersion = releases.find(manifest.getGameVersion());
         return HttpRequest.get(url(relVersion.getUrl()))
+                .useCache()
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
                 .asJson(VersionManifest.class);
     }
 
+    /**
+     * Wait for a fetch started in the background, throwing whatever it
+     * failed with.
+     */
+    private static <V> V await(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedExecutionException && cause.getCause() instanceof Exception) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
     private static void cleanJvmFiles(JavaFile[] files, File jvmPath) throws IOException {
         Path basePath = Paths.get(jvmPath.getAbsolutePath());
 
-        List<Path> shouldExist = (new ArrayList<>(Arrays.asList(files))
-                .stream()
+        Set<Path> shouldExist = Arrays.stream(files)
                 .map(jf -> basePath.resolve(jf.getPath()))
-                .collect(Collectors.toList())
-        );
+                .collect(Collectors.toCollection(HashSet::new));
 
         Files.walkFileTree(
             basePath,
@@ -198,7 +237,7 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
 
                 @Override
                 public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    if (!shouldExist.contains(dir) && !Files.list(dir).findAny().isPresent()) {
+                    if (!shouldExist.contains(dir) && !dir.equals(basePath) && isEmpty(dir)) {
                         System.out.println("Removing unwanted JVM folder: " + dir.toAbsolutePath().toString());
                         Files.delete(dir);
                     }
@@ -209,6 +248,33 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         );
     }
 
+    /**
+     * Remove the files that have been taken out of the runtime since it
+     * was last installed, leaving directories that still have other
+     * files in them.
+     */
+    private static void removeJvmFiles(List<String> paths, File jvmPath) throws IOException {
+        Path basePath = Paths.get(jvmPath.getAbsolutePath());
+
+        for (String path : paths) {
+            Path file = basePath.resolve(path);
+            if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                if (isEmpty(file)) {
+                    System.out.println("Removing unwanted JVM folder: " + file.toAbsolutePath().toString());
+                    Files.delete(file);
+                }
+            } else if (Files.deleteIfExists(file)) {
+                System.out.println("Removing unwanted JVM file: " + file.toAbsolutePath().toString());
+            }
+        }
+    }
+
+    private static boolean isEmpty(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            return !stream.iterator().hasNext();
+        }
+    }
+
     /**
      * Update the given instance.
      *
@@ -222,50 +288,139 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         instance.setLocal(true);
         Persistence.commitAndForget(instance);
 
-        // Read manifest
-        log.info("Reading package manifest...");
-        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingManifest"));
-        Manifest manifest = installPackage(installer, instance);
+        // The manifests are fetched in the background as soon as we know where
+        // they are, so that we aren't waiting on one round trip after another
+        ListeningExecutorService executor = launcher.getExecutor();
+        List<Future<?>> fetches = new ArrayList<Future<?>>();
+        final JavaManifest javaManifest = findJavaManifest();
+        final Manifest manifest;
+
+        try {
+            log.info("Fetching the Java manifest...");
+            ListenableFuture<JavaFile[]> filesFuture = executor.submit(() -> readJavaManifest(javaManifest));
+            fetches.add(filesFuture);
+
+            // Read manifest
+            log.info("Reading package manifest...");
+            progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingManifest"));
+            manifest = readPackageManifest(instance);
+
+            // The asset index is listed in the version manifest
+            log.info("Reading version manifest...");
+            ListenableFuture<VersionManifest> versionFuture = executor.submit(() -> readVersionManifest(manifest));
+            ListenableFuture<AssetsIndex> assetsIndexFuture = Futures.transform(versionFuture,
+                    new Function<VersionManifest, AssetsIndex>() {
+                        @Override
+                        public AssetsIndex apply(VersionManifest v) {
+                            try {
+                                return fetchAssetsIndex(v, url(v.getAssetIndex().getUrl()));
+                            } catch (Exception e) {
+                                throw new UncheckedExecutionException(e);
+                            }
+                        }
+                    }, executor);
+            fetches.add(versionFuture);
+            fetches.add(assetsIndexFuture);
+
+            // The game's files don't depend on the package's features, so they
+            // are queued and downloaded while the user is choosing features
+            installPackage(installer, instance, manifest, () -> {
+                installGame(manifest, javaManifest, versionFuture, filesFuture, assetsIndexFuture);
+                return null;
+            });
+        } finally {
+            // Don't leave fetches running if we've failed
+            for (Future<?> fetch : fetches) {
+                fetch.cancel(true);
+            }
+        }
 
         // Update instance from manifest
         manifest.update(instance);
 
-        // Read version manifest
-        log.info("Reading version manifest...");
-        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingVersion"));
-        VersionManifest version = readVersionManifest(manifest);
-
-        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.buildingDownloadList"));
-
-        // Read Java version manifest
-        log.info("Fetching the Java manifest...");
-        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingJavaVersion"));
+        log.info("Executing download and install phase...");
+        progress = installer;
+        installer.execute(launcher);
 
-        JavaManifest javaManifest = null;
-        for (Map.Entry<String, JavaManifest[]> entry : launcher.getInstances().getJavaVersions().entrySet()) {
-            if (entry.getKey().equalsIgnoreCase(instance.getJavaRuntime())) {
-                if (entry.getValue().length == 0) {
-                    throw new Exception("No valid candidate for Java runtime \"" + instance.getJavaRuntime() + "\"");
-                }
+        installer.executeLate(launcher);
 
-                javaManifest = entry.getValue()[0];
-                break;
+        // Let other launchers on this machine use the runtime
+        RuntimeStore runtimeStore = launcher.getRuntimeStore();
+        String runtimeHash = javaManifest.getManifest().getHash();
+        if (runtimeStore != null && runtimeHash != null) {
+            try {
+                runtimeStore.publish(instance.getJavaRuntime(), Environment.getInstance().getMojangOs(), runtimeHash,
+                        BundledJava.getJavaDir(launcher, instance.getJavaRuntime()), launcher.getBaseDir());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to share the Java runtime", e);
             }
         }
-        JavaFile[] files = readJavaManifest(javaManifest);
+
+        log.info("Completing...");
+        complete();
+
+        // Update the instance's information
+        log.info("Writing instance information...");
+        instance.setVersion(manifest.getVersion());
+        instance.setUpdatePending(false);
+        instance.setInstalled(true);
+        instance.setLocal(true);
+        Persistence.commitAndForget(instance);
+
+        log.log(Level.INFO, instance.getName() +
+                " has been updated to version " + manifest.getVersion() + ".");
+    }
+
+    /**
+     * Queue the Java runtime, the game's .jar, its libraries and its assets.
+     */
+    private void installGame(Manifest manifest, JavaManifest javaManifest,
+                             Future<VersionManifest> versionFuture, Future<JavaFile[]> filesFuture,
+                             Future<AssetsIndex> assetsIndexFuture) throws Exception {
+        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingVersion"));
+        VersionManifest version = await(versionFuture);
+        AssetsIndex assetsIndex = await(assetsIndexFuture);
+
+        progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingJavaVersion"));
+        JavaFile[] files = await(filesFuture);
 
         File jvmDir = BundledJava.getJavaDir(launcher, instance.getJavaRuntime());
         if (!jvmDir.exists()) {
             jvmDir.mkdirs();
         }
 
+        // Compare with the runtime as it was last installed, if we know
+        RuntimeSnapshot previous = RuntimeSnapshot.read(jvmDir);
+        RuntimeSnapshot snapshot = RuntimeSnapshot.of(files);
+
+        // Another launcher on this machine may have installed this runtime already
+        RuntimeStore runtimeStore = launcher.getRuntimeStore();
+        String runtimeOs = Environment.getInstance().getMojangOs();
+        String runtimeHash = javaManifest.getManifest().getHash();
+        if (runtimeStore != null && runtimeHash != null && !snapshot.equals(previous)
+                && runtimeStore.contains(instance.getJavaRuntime(), runtimeOs, runtimeHash)) {
+            log.info("Linking the Java runtime from " + runtimeStore.getDir());
+            try {
+                runtimeStore.place(instance.getJavaRuntime(), runtimeOs, runtimeHash, jvmDir, launcher.getBaseDir());
+                snapshot.write(jvmDir);
+                previous = snapshot;
+            } catch (IOException e) {
+                // Such as the runtime being in use by a running game, so update it in place instead
+                log.log(Level.WARNING, "Failed to link the Java runtime, installing it as usual", e);
+            }
+        }
+
         log.info("Cleanup unwanted JVM files...");
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.cleaningJavaFiles"));
-        cleanJvmFiles(files, jvmDir);
+        if (previous != null) {
+            removeJvmFiles(previous.getRemoved(snapshot), jvmDir);
+        } else {
+            cleanJvmFiles(files, jvmDir);
+        }
 
         // Validating / downloading the JVM
         log.info("Installing the correct JVM");
-        installJvm(installer, jvmDir, files);
+        installJvm(installer, jvmDir, files, previous);
 
         // Install the .jar
         File jarPath = launcher.getJarPath(version);
@@ -277,10 +432,10 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         // Download libraries
         log.info("Enumerating libraries to download...");
 
-        URL url = manifest.getLibrariesUrl();
-        if (url != null) {
-            log.info("Added library source: " + url);
-            librarySources.add(0, url);
+        List<URL> manifestSources = manifest.getLibrariesUrls();
+        if (!manifestSources.isEmpty()) {
+            log.info("Added library sources: " + manifestSources);
+            librarySources.addAll(0, manifestSources);
         }
 
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.collectingLibraries"));
@@ -289,31 +444,7 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         // Download assets
         log.info("Enumerating assets to download...");
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.collectingAssets"));
-        installAssets(installer, version, url(version.getAssetIndex().getUrl()), assetsSources);
-
-        log.info("Executing download phase...");
-        progress = ProgressFilter.between(installer.getDownloader(), 0, 0.98);
-        installer.download();
-
-        log.info("Executing install phase...");
-        progress = ProgressFilter.between(installer, 0.98, 1);
-        installer.execute(launcher);
-
-        installer.executeLate(launcher);
-
-        log.info("Completing...");
-        complete();
-
-        // Update the instance's information
-        log.info("Writing instance information...");
-        instance.setVersion(manifest.getVersion());
-        instance.setUpdatePending(false);
-        instance.setInstalled(true);
-        instance.setLocal(true);
-        Persistence.commitAndForget(instance);
-
-        log.log(Level.INFO, instance.getName() +
-                " has been updated to version " + manifest.getVersion() + ".");
+        installAssets(installer, assetsIndex, assetsSources);
     }
 
     @Override
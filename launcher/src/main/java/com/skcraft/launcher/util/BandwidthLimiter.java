@@ -0,0 +1,148 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate at which data is received with a token bucket.
+ * <p/>
+ * The bucket holds up to a second's worth of bytes and is refilled at the
+ * configured rate. Readers take as many tokens as the bytes they have
+ * just read, and when the bucket runs dry, they wait until it has been
+ * refilled far enough. The rate can be changed at any time, which takes
+ * effect for the very next read.
+ * <p/>
+ * {@link #getGlobal()} applies to every request made with
+ * {@link HttpRequest}, while other instances can be given to individual
+ * requests with {@link HttpRequest#limitRate(BandwidthLimiter)}.
+ */
+public class BandwidthLimiter {
+
+    private static final BandwidthLimiter global = new BandwidthLimiter();
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final long MAX_WAIT = 1000;
+
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long sampleStart = System.currentTimeMillis();
+    private long sampleBytes;
+    private double throughput;
+
+    /**
+     * Create a new limiter that doesn't limit anything until a rate is set.
+     */
+    public BandwidthLimiter() {
+    }
+
+    /**
+     * Create a new limiter.
+     *
+     * @param rate the rate in bytes per second, or 0 for no limit
+     */
+    public BandwidthLimiter(long rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Get the limiter shared by all requests.
+     *
+     * @return the limiter
+     */
+    public static BandwidthLimiter getGlobal() {
+        return global;
+    }
+
+    /**
+     * Get the rate.
+     *
+     * @return the rate in bytes per second, or 0 if there is no limit
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Set the rate.
+     *
+     * @param rate the rate in bytes per second, or 0 for no limit
+     */
+    public synchronized void setRate(long rate) {
+        rate = Math.max(0, rate);
+        if (this.rate == 0 || rate < this.rate) {
+            // Don't let a burst saved up at the old rate through
+            tokens = Math.min(tokens, rate);
+        }
+        this.rate = rate;
+        lastRefill = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * Get the rate at which data has been received recently, whether or
+     * not it is limited.
+     *
+     * @return the rate in bytes per second
+     */
+    public synchronized double getThroughput() {
+        sample(0);
+        return throughput;
+    }
+
+    /**
+     * Take tokens for bytes that have been received, waiting until enough
+     * are available if the bucket is empty.
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException thrown if the thread is interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedIOException {
+        sample(bytes);
+
+        if (rate <= 0) {
+            return;
+        }
+
+        refill();
+        tokens -= bytes;
+
+        try {
+            // Wait in steps so that a changed rate is picked up
+            while (tokens < 0 && rate > 0) {
+                long wait = Math.min(MAX_WAIT, Math.max(1, (long) Math.ceil(-tokens * 1000 / rate)));
+                wait(wait);
+                refill();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (rate <= 0) {
+            tokens = 0;
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+
+    private void sample(long bytes) {
+        sampleBytes += bytes;
+        long now = System.currentTimeMillis();
+        long elapsed = now - sampleStart;
+        if (elapsed >= SAMPLE_INTERVAL) {
+            throughput = sampleBytes * 1000.0 / elapsed;
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+    }
+
+}
@@ -1,43 +1,102 @@
 package com.skcraft.launcher.util;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
+import com.google.common.io.BaseEncoding;
 import com.skcraft.launcher.model.modpack.DownloadableFile;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
+	private static final int HASH_BUFFER_SIZE = 1024 * 64;
+
+	/**
+	 * Per-thread direct buffer so hashing any file takes constant memory.
+	 */
+	private static final ThreadLocal<ByteBuffer> hashBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+		}
+	};
+
 	public static DownloadableFile saveStreamToObjectsDir(InputStream stream, File outputDir) throws IOException {
-		byte[] input = ByteStreams.toByteArray(stream);
-		HashFunction hf = Hashing.sha1();
+		MessageDigest digest = newSha1();
+		byte[] buffer = new byte[HASH_BUFFER_SIZE];
+		long size = 0;
+
+		outputDir.mkdirs();
+		File temp = File.createTempFile("object", ".tmp", outputDir);
 
-		String fileHash = hf.hashBytes(input).toString();
-		String filePath = fileHash.substring(0, 2) + "/" + fileHash.substring(2, 4) + "/" + fileHash;
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				int len;
+				while ((len = stream.read(buffer)) != -1) {
+					digest.update(buffer, 0, len);
+					out.write(buffer, 0, len);
+					size += len;
+				}
+			} finally {
+				out.close();
+			}
 
-		File dest = new File(outputDir, filePath);
-		dest.getParentFile().mkdirs();
+			String fileHash = toHex(digest.digest());
+			String filePath = fileHash.substring(0, 2) + "/" + fileHash.substring(2, 4) + "/" + fileHash;
 
-		Files.write(input, dest);
+			File dest = new File(outputDir, filePath);
+			dest.getParentFile().mkdirs();
 
-		DownloadableFile entry = new DownloadableFile();
-		entry.setLocation(filePath);
-		entry.setHash(fileHash);
-		entry.setSize(input.length);
+			Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
 
-		return entry;
+			DownloadableFile entry = new DownloadableFile();
+			entry.setLocation(filePath);
+			entry.setHash(fileHash);
+			entry.setSize((int) size);
+
+			return entry;
+		} finally {
+			temp.delete();
+		}
 	}
 
 	public static String getShaHash(File file) throws IOException {
-		FileInputStream stream = new FileInputStream(file);
-		byte[] input = ByteStreams.toByteArray(stream);
-		String res = Hashing.sha1().hashBytes(input).toString();
+		MessageDigest digest = newSha1();
+		ByteBuffer buffer = hashBuffer.get();
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			buffer.clear();
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-		stream.close();
-		return res;
+	private static String toHex(byte[] bytes) {
+		return BaseEncoding.base16().lowerCase().encode(bytes);
 	}
 }
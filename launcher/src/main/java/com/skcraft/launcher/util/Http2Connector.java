@@ -0,0 +1,33 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Opens connections with the HTTP/2 capable client that comes with Java 11.
+ * <p/>
+ * This is the Java 8 version, which reports the client as unavailable. The
+ * launcher jar is a multi-release jar, and on Java 11 or newer this class is
+ * replaced by the one in <code>src/main/java11</code>.
+ */
+final class Http2Connector {
+
+    private Http2Connector() {
+    }
+
+    static boolean isAvailable() {
+        return false;
+    }
+
+    static HttpConnection open(String method, URL url, Map<String, String> headers, int timeout) throws IOException {
+        throw new UnsupportedOperationException("HTTP/2 requires Java 11 or newer");
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+
+/**
+ * Stores responses to GET requests made with {@link HttpRequest#useCache()}
+ * on disk, along with their ETag and Last-Modified headers, so that the next
+ * request for the same URL can be made conditional. When the server answers
+ * with 304 Not Modified, the stored body is used instead.
+ */
+@Log
+public final class HttpCache {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Striped<Lock> locks = Striped.lock(16);
+    private static volatile File dir;
+
+    private HttpCache() {
+    }
+
+    /**
+     * Set the directory to store responses in. Nothing is cached until
+     * this is called.
+     *
+     * @param dir the directory
+     */
+    public static void setDirectory(File dir) {
+        HttpCache.dir = dir;
+    }
+
+    /**
+     * Get the stored response for a URL. The body is opened right away so
+     * that it can't be replaced by another download in the meantime, and
+     * must be closed by the caller.
+     *
+     * @param url the URL
+     * @return the entry, or null if there is none
+     */
+    static Entry get(@NonNull URL url) {
+        File dir = HttpCache.dir;
+        if (dir == null) {
+            return null;
+        }
+
+        String key = getKey(url);
+        File metaFile = new File(dir, key + ".json");
+        File bodyFile = new File(dir, key + ".body");
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (!metaFile.isFile() || !bodyFile.isFile()) {
+                return null;
+            }
+
+            Entry entry = mapper.readValue(metaFile, Entry.class);
+            if (!url.toExternalForm().equals(entry.getUrl())) {
+                return null;
+            }
+            entry.setBody(new FileInputStream(bodyFile));
+            entry.setLength(bodyFile.length());
+            return entry;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read cached response for " + url, e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wrap the body of a response so that a copy is kept while it is read.
+     * The copy only replaces the stored response once
+     * {@link StoringInputStream#commit()} is called after the whole body has
+     * been read and checked. Responses without an ETag or Last-Modified header
+     * are not stored, as they could never be validated.
+     *
+     * @param url the URL
+     * @param conn the connection
+     * @param body the body
+     * @return the stream to read the body from
+     */
+    static InputStream store(@NonNull URL url, @NonNull HttpConnection conn, @NonNull InputStream body) {
+        File dir = HttpCache.dir;
+        if (dir == null) {
+            return body;
+        }
+
+        Entry entry = new Entry();
+        entry.setUrl(url.toExternalForm());
+        entry.setEtag(conn.getHeaderField("ETag"));
+        entry.setLastModified(conn.getHeaderField("Last-Modified"));
+        entry.setContentType(conn.getHeaderField("Content-Type"));
+        if (entry.getEtag() == null && entry.getLastModified() == null) {
+            return body;
+        }
+
+        // The body is stored decoded, so the length can only be checked for unencoded responses
+        long expectedLength = -1;
+        if (conn.getHeaderField("Content-Encoding") == null) {
+            try {
+                String field = conn.getHeaderField("Content-Length");
+                if (field != null) {
+                    expectedLength = Long.parseLong(field);
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        try {
+            dir.mkdirs();
+            return new StoringInputStream(body, dir, getKey(url), entry, expectedLength);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to cache response for " + url, e);
+            return body;
+        }
+    }
+
+    private static String getKey(URL url) {
+        return Hashing.sha1().hashString(url.toExternalForm(), Charsets.UTF_8).toString();
+    }
+
+    @Data
+    static class Entry {
+        private String url;
+        private String etag;
+        private String lastModified;
+        private String contentType;
+        @JsonIgnore
+        private InputStream body;
+        @JsonIgnore
+        private long length;
+    }
+
+    /**
+     * Copies everything read to a temporary file, which replaces the stored
+     * response when {@link #commit()} is called. The copy is thrown away if
+     * the stream is closed without being committed.
+     */
+    static class StoringInputStream extends FilterInputStream {
+        private final File dir;
+        private final String key;
+        private final Entry entry;
+        private final long expectedLength;
+        private final File tempFile;
+        private final OutputStream out;
+        private long written;
+        private boolean eof;
+        private boolean done;
+
+        private StoringInputStream(InputStream in, File dir, String key, Entry entry, long expectedLength)
+                throws IOException {
+            super(in);
+            this.dir = dir;
+            this.key = key;
+            this.entry = entry;
+            this.expectedLength = expectedLength;
+            this.tempFile = File.createTempFile(key, ".tmp", dir);
+            this.out = new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                eof = true;
+            } else if (!done) {
+                out.write(b);
+                written++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                eof = true;
+            } else if (!done) {
+                out.write(b, off, read);
+                written += read;
+            }
+            return read;
+        }
+
+        /**
+         * Replace the stored response with the copy, provided the body was
+         * read to the end and matches the Content-Length header.
+         */
+        void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+
+            File metaTempFile = null;
+            Lock lock = locks.get(key);
+            lock.lock();
+            try {
+                out.close();
+                if (!eof || (expectedLength >= 0 && written != expectedLength)) {
+                    log.warning("Not caching incomplete response for " + entry.getUrl());
+                    return;
+                }
+
+                File metaFile = new File(dir, key + ".json");
+                File bodyFile = new File(dir, key + ".body");
+                metaTempFile = File.createTempFile(key, ".tmp", dir);
+                mapper.writeValue(metaTempFile, entry);
+                metaFile.delete();
+                Files.move(tempFile.toPath(), bodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(metaTempFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to cache response for " + entry.getUrl(), e);
+            } finally {
+                lock.unlock();
+                tempFile.delete();
+                if (metaTempFile != null) {
+                    metaTempFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Throw away the copy, unless it has already been committed.
+         */
+        void discard() {
+            if (done) {
+                return;
+            }
+            done = true;
+
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            } finally {
+                tempFile.delete();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+    }
+
+}
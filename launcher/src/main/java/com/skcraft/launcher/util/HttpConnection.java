@@ -0,0 +1,36 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * An open connection behind a {@link HttpRequest}, so that requests can be
+ * sent either with {@link java.net.HttpURLConnection} or with the HTTP/2
+ * capable client from Java 11.
+ */
+interface HttpConnection {
+
+    URL getURL();
+
+    int getResponseCode() throws IOException;
+
+    String getHeaderField(String name);
+
+    /**
+     * Get the response body, which is the error body for 4xx and 5xx codes.
+     *
+     * @return the body, or null if there is none
+     * @throws IOException on I/O error
+     */
+    InputStream getBody() throws IOException;
+
+    void disconnect();
+
+}
@@ -0,0 +1,113 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the persistent connections used by {@link HttpRequest}.
+ * <p/>
+ * The pool itself is the JVM's keep-alive cache behind
+ * {@link java.net.HttpURLConnection}, which keeps idle connections per
+ * host once their response has been read to the end and closed. This
+ * class sizes that cache and counts, per host, how many connections were
+ * handed back to it and how many had to be thrown away.
+ */
+@Log
+public final class HttpConnectionPool {
+
+    /**
+     * The number of idle connections kept per host when none is configured.
+     * {@link com.skcraft.launcher.install.HttpDownloader} never downloads
+     * from one host more often at once than the configured number, so that
+     * no connection it makes has to be thrown away.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+
+    private static final ConcurrentMap<String, HostStats> stats = new ConcurrentHashMap<String, HostStats>();
+    private static volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private HttpConnectionPool() {
+    }
+
+    /**
+     * Set how many idle connections are kept open per host. This has to be
+     * called before the first HTTP request is made to take effect.
+     *
+     * @param max the maximum number of idle connections per host
+     */
+    public static void setMaxConnectionsPerHost(int max) {
+        if (max <= 0) {
+            max = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        }
+
+        maxConnectionsPerHost = max;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(max));
+        log.info("Keeping up to " + max + " connection(s) alive per host");
+    }
+
+    /**
+     * Get how many idle connections are kept open per host, which is also
+     * the most connections that should be made to one host at once.
+     *
+     * @return the maximum number of idle connections per host
+     */
+    public static int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Get the statistics for every host that has been contacted.
+     *
+     * @return a list of statistics
+     */
+    public static List<HostStats> getStats() {
+        return new ArrayList<HostStats>(stats.values());
+    }
+
+    /**
+     * Log the statistics for every host that has been contacted.
+     */
+    public static void logStats() {
+        for (HostStats host : stats.values()) {
+            log.info(String.format("%s: %d request(s), %d connection(s) kept alive, %d closed",
+                    host.getHost(), host.getRequests().get(), host.getReleased().get(), host.getDiscarded().get()));
+        }
+    }
+
+    static HostStats getStats(@NonNull URL url) {
+        String key = url.getProtocol() + "://" + url.getAuthority();
+        HostStats host = stats.get(key);
+        if (host == null) {
+            HostStats created = new HostStats(key);
+            host = stats.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    @Data
+    public static class HostStats {
+        private final String host;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong released = new AtomicLong();
+        private final AtomicLong discarded = new AtomicLong();
+    }
+
+}
@@ -7,7 +7,12 @@
 package com.skcraft.launcher.util;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.skcraft.concurrency.ProgressObservable;
 import lombok.Data;
 import lombok.Getter;
@@ -19,9 +24,12 @@ import javax.xml.bind.Unmarshaller;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static org.apache.commons.io.IOUtils.closeQuietly;
@@ -35,6 +43,8 @@ public class HttpRequest implements Closeable, ProgressObservable {
 
     private static final int READ_TIMEOUT = 1000 * 60 * 10;
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_DRAIN_BYTES = 1024 * 64;
+    private static final int MAX_PRESIZED_BUFFER = 1024 * 1024 * 64;
 
     private final ObjectMapper mapper = new ObjectMapper();
     private final Map<String, String> headers = new HashMap<String, String>();
@@ -43,13 +53,26 @@ public class HttpRequest implements Closeable, ProgressObservable {
     private final URL url;
     private String contentType;
     private byte[] body;
-    private HttpURLConnection conn;
+    private HttpConnection conn;
     private InputStream inputStream;
     private int redirectCount;
 
     private PartialDownloadInfo resumeInfo = null;
     private long contentLength = -1;
     private long readBytes = 0;
+    private String expectedHash;
+    private Hasher hasher;
+    private boolean reading;
+    private boolean bodyComplete;
+    private boolean closed;
+    private boolean http2;
+    private boolean compression = true;
+    private boolean useCache;
+    private HttpCache.Entry cached;
+    private HttpCache.StoringInputStream cacheStream;
+    private boolean fromCache;
+    private String contentEncoding;
+    private final List<BandwidthLimiter> limiters = new ArrayList<BandwidthLimiter>();
 
     /**
      * Create a new HTTP request.
@@ -99,6 +122,66 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    /**
+     * Verify the SHA-1 hash of the response body while it is being saved
+     * with {@link #saveContent(File)} or {@link #saveContent(OutputStream)}.
+     *
+     * @param hash the expected hash, or null to not verify the body
+     * @return this object
+     */
+    public HttpRequest expectHash(String hash) {
+        this.expectedHash = hash;
+        return this;
+    }
+
+    /**
+     * Send the request with the HTTP/2 capable client when the launcher is
+     * running on Java 11 or newer. Requests with a body always use
+     * {@link HttpURLConnection}.
+     *
+     * @return this object
+     */
+    public HttpRequest preferHttp2() {
+        this.http2 = true;
+        return this;
+    }
+
+    /**
+     * Don't ask the server to compress the response. Compressed responses
+     * can't be resumed or downloaded in parts, so this is better for large
+     * files that are already compressed anyway.
+     *
+     * @return this object
+     */
+    public HttpRequest disableCompression() {
+        this.compression = false;
+        return this;
+    }
+
+    /**
+     * Limit the rate at which the response is received, on top of the
+     * limit set on {@link BandwidthLimiter#getGlobal()}.
+     *
+     * @param limiter the limiter
+     * @return this object
+     */
+    public HttpRequest limitRate(BandwidthLimiter limiter) {
+        limiters.add(limiter);
+        return this;
+    }
+
+    /**
+     * Make the request conditional on the response stored by {@link HttpCache}
+     * the last time, and store this response for the next time. A response of
+     * 304 Not Modified is then turned into a 200 with the stored body.
+     *
+     * @return this object
+     */
+    public HttpRequest useCache() {
+        this.useCache = true;
+        return this;
+    }
+
     /**
      * Execute the request.
      * <p/>
@@ -115,12 +198,33 @@ public class HttpRequest implements Closeable, ProgressObservable {
                 throw new IllegalArgumentException("Connection already executed");
             }
 
+            if (useCache && body == null && "GET".equals(method)) {
+                cached = HttpCache.get(url);
+            }
+
             conn = this.runRequest(url);
 
-            inputStream = isSuccessCode() ? conn.getInputStream() : conn.getErrorStream();
+            if (cached != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                log.info("Not modified, using cached copy of " + url);
+                release(conn, conn.getBody());
+                conn = openCached(cached);
+                fromCache = true;
+                inputStream = new CountingInputStream(conn.getBody(), false);
+            } else {
+                inputStream = decode(conn.getBody());
+                if (useCache && conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    inputStream = HttpCache.store(url, conn, inputStream);
+                    if (inputStream instanceof HttpCache.StoringInputStream) {
+                        cacheStream = (HttpCache.StoringInputStream) inputStream;
+                    }
+                }
+            }
 
             successful = true;
         } finally {
+            if (cached != null && !fromCache) {
+                closeQuietly(cached.getBody());
+            }
             if (!successful) {
                 close();
             }
@@ -129,41 +233,40 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
-    private HttpURLConnection runRequest(URL url) throws IOException {
+    private HttpConnection runRequest(URL url) throws IOException {
         if (redirectCount > 20) {
             throw new IOException("Too many redirects!");
         }
 
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Java) SKMCLauncher");
-        conn.setInstanceFollowRedirects(false);
+        HttpConnectionPool.getStats(url).getRequests().incrementAndGet();
 
-        if (body != null) {
-            conn.setRequestProperty("Content-Type", contentType);
-            conn.setRequestProperty("Content-Length", Integer.toString(body.length));
-            conn.setDoInput(true);
-        }
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        requestHeaders.put("User-Agent", "Mozilla/5.0 (Java) SKMCLauncher");
 
         if (resumeInfo != null) {
-            conn.setRequestProperty("Range", String.format("bytes=%d-", resumeInfo.currentLength));
+            requestHeaders.put("Range", String.format("bytes=%d-", resumeInfo.currentLength));
         }
 
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            conn.setRequestProperty(entry.getKey(), entry.getValue());
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                requestHeaders.put("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                requestHeaders.put("If-Modified-Since", cached.getLastModified());
+            }
         }
 
-        conn.setRequestMethod(method);
-        conn.setUseCaches(false);
-        conn.setDoOutput(true);
-        conn.setReadTimeout(READ_TIMEOUT);
+        if (compression && "GET".equals(method) && resumeInfo == null && !headers.containsKey("Range")) {
+            requestHeaders.put("Accept-Encoding", "gzip, deflate");
+        }
 
-        conn.connect();
+        requestHeaders.putAll(headers);
 
-        if (body != null) {
-            DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-            out.write(body);
-            out.flush();
-            out.close();
+        HttpConnection conn;
+        if (http2 && body == null && Http2Connector.isAvailable()) {
+            conn = Http2Connector.open(method, url, requestHeaders, READ_TIMEOUT);
+        } else {
+            conn = openConnection(url, requestHeaders);
         }
 
         switch (conn.getResponseCode()) {
@@ -178,6 +281,14 @@ public class HttpRequest implements Closeable, ProgressObservable {
                 String location = conn.getHeaderField("Location");
                 redirectCount++;
 
+                // Hand the connection back before following the redirect
+                InputStream redirectBody = null;
+                try {
+                    redirectBody = conn.getBody();
+                } catch (IOException ignored) {
+                }
+                release(conn, redirectBody);
+
                 return runRequest(new URL(this.url, location));
             default:
                 break;
@@ -186,6 +297,103 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return conn;
     }
 
+    private HttpConnection openCached(final HttpCache.Entry entry) throws IOException {
+        final InputStream body = entry.getBody();
+        final long length = entry.getLength();
+
+        return new HttpConnection() {
+            @Override
+            public URL getURL() {
+                return url;
+            }
+
+            @Override
+            public int getResponseCode() {
+                return HttpURLConnection.HTTP_OK;
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                if ("Content-Type".equalsIgnoreCase(name)) {
+                    return entry.getContentType();
+                } else if ("Content-Length".equalsIgnoreCase(name)) {
+                    return String.valueOf(length);
+                } else if ("ETag".equalsIgnoreCase(name)) {
+                    return entry.getEtag();
+                } else if ("Last-Modified".equalsIgnoreCase(name)) {
+                    return entry.getLastModified();
+                }
+                return null;
+            }
+
+            @Override
+            public InputStream getBody() {
+                return body;
+            }
+
+            @Override
+            public void disconnect() {
+                closeQuietly(body);
+            }
+        };
+    }
+
+    private HttpConnection openConnection(URL url, Map<String, String> requestHeaders) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setInstanceFollowRedirects(false);
+
+        if (body != null) {
+            conn.setRequestProperty("Content-Type", contentType);
+            conn.setRequestProperty("Content-Length", Integer.toString(body.length));
+            conn.setDoInput(true);
+        }
+
+        for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+            conn.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+
+        conn.setRequestMethod(method);
+        conn.setUseCaches(false);
+        conn.setDoOutput(true);
+        conn.setReadTimeout(READ_TIMEOUT);
+
+        conn.connect();
+
+        if (body != null) {
+            DataOutputStream out = new DataOutputStream(conn.getOutputStream());
+            out.write(body);
+            out.flush();
+            out.close();
+        }
+
+        return new HttpConnection() {
+            @Override
+            public URL getURL() {
+                return conn.getURL();
+            }
+
+            @Override
+            public int getResponseCode() throws IOException {
+                return conn.getResponseCode();
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                return conn.getHeaderField(name);
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                return conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+            }
+
+            @Override
+            public void disconnect() {
+                conn.disconnect();
+            }
+        };
+    }
+
     /**
      * Require that the response code is one of the given response codes.
      *
@@ -296,6 +504,16 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return conn != null;
     }
 
+    /**
+     * Get a header of the response.
+     *
+     * @param name the name of the header
+     * @return the value, or null if the header was not sent or no request was made
+     */
+    public String getHeaderField(String name) {
+        return conn != null ? conn.getHeaderField(name) : null;
+    }
+
     /**
      * Buffer the returned response.
      *
@@ -308,19 +526,154 @@ public class HttpRequest implements Closeable, ProgressObservable {
             throw new IllegalArgumentException("No input stream available");
         }
 
+        readContentLength();
+        reading = true;
+
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int b = 0;
-            while ((b = inputStream.read()) != -1) {
-                checkInterrupted();
-                bos.write(b);
+            byte[] data;
+            if (contentEncoding == null && contentLength >= 0 && contentLength <= MAX_PRESIZED_BUFFER) {
+                // Read straight into an array of the right size
+                data = new byte[(int) contentLength];
+                int offset = 0;
+                int len;
+                while (offset < data.length && (len = inputStream.read(data, offset, data.length - offset)) != -1) {
+                    offset += len;
+                    checkInterrupted();
+                }
+                if (offset < data.length) {
+                    throw new IOException(String.format("Connection closed with %d bytes transferred, expected %d",
+                            offset, contentLength));
+                }
+                if (inputStream.read() != -1) {
+                    throw new IOException("Received more data than the " + contentLength + " bytes expected");
+                }
+            } else {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int len;
+                while ((len = inputStream.read(buffer)) != -1) {
+                    bos.write(buffer, 0, len);
+                    checkInterrupted();
+                }
+                data = bos.toByteArray();
             }
-            return new BufferedResponse(bos.toByteArray());
+            bodyComplete = true;
+            commitCache();
+            return new BufferedResponse(data);
         } finally {
             close();
         }
     }
 
+    /**
+     * Parse the response as JSON while it is being received, without
+     * buffering it first.
+     *
+     * @param cls the class
+     * @return the object
+     * @throws java.io.IOException  on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T asJson(Class<T> cls) throws IOException, InterruptedException {
+        return asJson(mapper.getTypeFactory().constructType(cls), null);
+    }
+
+    /**
+     * Parse the response as JSON while it is being received, without
+     * buffering it first.
+     *
+     * @param type the type reference
+     * @return the object
+     * @throws java.io.IOException  on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T asJson(TypeReference<T> type) throws IOException, InterruptedException {
+        return asJson(mapper.getTypeFactory().constructType(type), null);
+    }
+
+    /**
+     * Parse the response as JSON while it is being received, and also save
+     * it to a file. The file is only replaced once the whole response has
+     * been received and parsed.
+     *
+     * @param cls the class
+     * @param file the file to save the response to
+     * @return the object
+     * @throws java.io.IOException  on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T asJson(Class<T> cls, File file) throws IOException, InterruptedException {
+        return asJson(mapper.getTypeFactory().constructType(cls), file);
+    }
+
+    private <T> T asJson(JavaType type, File file) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        readContentLength();
+        reading = true;
+
+        File tempFile = null;
+        OutputStream out = null;
+
+        try {
+            if (file != null) {
+                file.getParentFile().mkdirs();
+                tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+                out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            }
+
+            InputStream in = new BodyInputStream(new BufferedInputStream(inputStream, READ_BUFFER_SIZE), out);
+            T value = mapper.readValue(in, type);
+
+            // Read whatever follows the JSON value so that the copy is complete
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+            }
+            bodyComplete = true;
+
+            if (contentLength >= 0 && contentLength != readBytes) {
+                throw new IOException(String.format("Connection closed with %d bytes transferred, expected %d",
+                        readBytes, contentLength));
+            }
+            commitCache();
+
+            if (out != null) {
+                out.close();
+                out = null;
+                Files.move(tempFile, file);
+                tempFile = null;
+            }
+
+            return value;
+        } catch (InterruptedIOException e) {
+            // Timeouts are InterruptedIOExceptions too, but only an interruption leaves the flag set
+            if (e instanceof SocketTimeoutException || !Thread.interrupted()) {
+                throw e;
+            }
+            InterruptedException interrupted = new InterruptedException();
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            closeQuietly(out);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Store the response in {@link HttpCache} now that it has been read
+     * completely and checked.
+     */
+    private void commitCache() {
+        if (cacheStream != null) {
+            cacheStream.commit();
+        }
+    }
+
     /**
      * Save the result to a file.
      *
@@ -334,6 +687,14 @@ public class HttpRequest implements Closeable, ProgressObservable {
         BufferedOutputStream bos = null;
         boolean shouldAppend = resumeInfo != null && getResponseCode() == 206;
 
+        if (expectedHash != null) {
+            hasher = Hashing.sha1().newHasher();
+            if (shouldAppend) {
+                // The hash has to cover the part downloaded earlier as well
+                Files.copy(file, Funnels.asOutputStream(hasher));
+            }
+        }
+
         try {
             fos = new FileOutputStream(file, shouldAppend);
             bos = new BufferedOutputStream(fos);
@@ -358,17 +719,13 @@ public class HttpRequest implements Closeable, ProgressObservable {
     public HttpRequest saveContent(OutputStream out) throws IOException, InterruptedException {
         BufferedInputStream bis;
 
-        try {
-            String field = conn.getHeaderField("Content-Length");
-            if (field != null) {
-                long len = Long.parseLong(field);
-                if (len >= 0) { // Let's just not deal with really big numbers
-                    contentLength = len;
-                }
-            }
-        } catch (NumberFormatException e) {
+        if (expectedHash != null && hasher == null) {
+            hasher = Hashing.sha1().newHasher();
         }
 
+        readContentLength();
+        reading = true;
+
         try {
             bis = new BufferedInputStream(inputStream);
 
@@ -376,14 +733,26 @@ public class HttpRequest implements Closeable, ProgressObservable {
             int len = 0;
             while ((len = bis.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
                 out.write(data, 0, len);
-                readBytes += len;
+                if (hasher != null) {
+                    hasher.putBytes(data, 0, len);
+                }
                 checkInterrupted();
             }
+            bodyComplete = true;
 
             if (contentLength >= 0 && contentLength != readBytes) {
                 throw new IOException(String.format("Connection closed with %d bytes transferred, expected %d",
                         readBytes, contentLength));
             }
+
+            if (hasher != null) {
+                String actualHash = hasher.hash().toString();
+                if (!actualHash.equalsIgnoreCase(expectedHash)) {
+                    throw new HashMismatchException(String.format("Got hash %s for %s, expected %s",
+                            actualHash, url, expectedHash));
+                }
+            }
+            commitCache();
         } finally {
             close();
         }
@@ -391,12 +760,57 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    /**
+     * Count the bytes received, which is what Content-Length refers to and
+     * what the bandwidth limit applies to, and then undo any compression
+     * the server applied.
+     */
+    private InputStream decode(InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+
+        in = new CountingInputStream(in, true);
+
+        String encoding = conn.getHeaderField("Content-Encoding");
+        int code = conn.getResponseCode();
+        if (encoding == null || "HEAD".equals(method)
+                || code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return in;
+        }
+
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            contentEncoding = encoding;
+            return new GZIPInputStream(in, READ_BUFFER_SIZE);
+        } else if (encoding.equals("deflate")) {
+            contentEncoding = encoding;
+            return new InflaterInputStream(in);
+        } else {
+            return in;
+        }
+    }
+
+    private void readContentLength() {
+        try {
+            String field = conn.getHeaderField("Content-Length");
+            if (field != null) {
+                long len = Long.parseLong(field);
+                if (len >= 0) { // Let's just not deal with really big numbers
+                    contentLength = len;
+                }
+            }
+        } catch (NumberFormatException e) {
+        }
+    }
+
     public Optional<PartialDownloadInfo> canRetryPartial() {
         if (conn == null) {
             return Optional.empty();
         }
 
-        if ("bytes".equals(conn.getHeaderField("Accept-Ranges"))) {
+        // Offsets into a compressed body can't be mapped to the file
+        if (contentEncoding == null && "bytes".equals(conn.getHeaderField("Accept-Ranges"))) {
             return Optional.of(new PartialDownloadInfo(contentLength, readBytes));
         }
 
@@ -427,9 +841,62 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return null;
     }
 
+    /**
+     * Close the request. The connection is returned to the keep-alive pool
+     * when the response has been read completely (or was never read and is
+     * small enough to skip), and is otherwise closed.
+     *
+     * @throws IOException on I/O error
+     */
     @Override
     public void close() throws IOException {
-        if (conn != null) conn.disconnect();
+        if (conn == null || closed) return;
+        closed = true;
+
+        if (cacheStream != null) {
+            cacheStream.discard();
+        }
+
+        if (fromCache) {
+            conn.disconnect();
+            return;
+        }
+
+        if (!reading || bodyComplete) {
+            release(conn, inputStream);
+        } else {
+            conn.disconnect();
+            HttpConnectionPool.getStats(conn.getURL()).getDiscarded().incrementAndGet();
+        }
+    }
+
+    /**
+     * Read the rest of a response body so that the underlying connection
+     * can be reused, or close the connection if that's not possible.
+     */
+    private static void release(HttpConnection conn, InputStream in) {
+        HttpConnectionPool.HostStats stats = HttpConnectionPool.getStats(conn.getURL());
+
+        if (in != null) {
+            try {
+                byte[] data = new byte[READ_BUFFER_SIZE];
+                long remaining = MAX_DRAIN_BYTES;
+                int len;
+                while (remaining >= 0 && (len = in.read(data)) != -1) {
+                    remaining -= len;
+                }
+
+                if (remaining >= 0) {
+                    in.close();
+                    stats.getReleased().incrementAndGet();
+                    return;
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        conn.disconnect();
+        stats.getDiscarded().incrementAndGet();
     }
 
     /**
@@ -569,7 +1036,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
          * @throws java.io.IOException on I/O error
          */
         public <T> T asJson(Class<T> cls) throws IOException {
-            return mapper.readValue(asString("UTF-8"), cls);
+            return mapper.readValue(data, cls);
         }
 
         /**
@@ -581,7 +1048,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
          * @throws java.io.IOException on I/O error
          */
         public <T> T asJson(TypeReference<T> type) throws IOException {
-            return mapper.readValue(asString("UTF-8"), type);
+            return mapper.readValue(data, type);
         }
 
         /**
@@ -644,10 +1111,102 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Copies the bytes read to an optional output stream and stops on
+     * interruption.
+     */
+    private class BodyInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        private BodyInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+
+            int read = super.read(b, off, len);
+            if (read > 0 && copy != null) {
+                copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // The request closes the underlying stream itself
+        }
+    }
+
+    /**
+     * Counts the bytes received towards the progress of the request and,
+     * for bytes received over the network, takes them from the bandwidth
+     * limiters.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean limited;
+
+        private CountingInputStream(InputStream in, boolean limited) {
+            super(in);
+            this.limited = limited;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                readBytes++;
+                limit(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                readBytes += read;
+                limit(read);
+            }
+            return read;
+        }
+
+        private void limit(int bytes) throws InterruptedIOException {
+            if (limited) {
+                BandwidthLimiter.getGlobal().acquire(bytes);
+                for (BandwidthLimiter limiter : limiters) {
+                    limiter.acquire(bytes);
+                }
+            }
+        }
+    }
+
     @Data
     public static class PartialDownloadInfo {
         private final long expectedLength;
         private final long currentLength;
     }
 
+    /**
+     * Thrown when the saved response body does not match the hash given
+     * to {@link #expectHash(String)}.
+     */
+    public static class HashMismatchException extends IOException {
+        private static final long serialVersionUID = -4187932503591432317L;
+
+        public HashMismatchException(String message) {
+            super(message);
+        }
+    }
+
 }
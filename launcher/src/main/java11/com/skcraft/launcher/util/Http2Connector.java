@@ -0,0 +1,199 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections with the HTTP/2 capable client that comes with Java 11,
+ * so that many small downloads from the same host can share a handful of
+ * multiplexed connections.
+ * <p/>
+ * This is the Java 11 version of the class, which is picked from the
+ * multi-release launcher jar on newer runtimes.
+ */
+final class Http2Connector {
+
+    private static final HttpClient client = createClient();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "HTTP/2 read timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Http2Connector() {
+    }
+
+    static boolean isAvailable() {
+        return true;
+    }
+
+    static HttpConnection open(String method, URL url, Map<String, String> headers, int timeout) throws IOException {
+        java.net.http.HttpRequest.Builder builder;
+        try {
+            builder = java.net.http.HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + url, e);
+        }
+
+        builder.timeout(Duration.ofMillis(timeout))
+                .method(method, java.net.http.HttpRequest.BodyPublishers.noBody());
+
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            try {
+                builder.header(entry.getKey(), entry.getValue());
+            } catch (IllegalArgumentException e) {
+                // The client manages restricted headers such as Connection itself
+            }
+        }
+
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + url + " was interrupted");
+        }
+
+        return new Connection(url, response, timeout);
+    }
+
+    private static HttpClient createClient() {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER);
+
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector != null) {
+            builder.proxy(proxySelector);
+        }
+
+        return builder.build();
+    }
+
+    private static class Connection implements HttpConnection {
+        private final URL url;
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+
+        private Connection(URL url, HttpResponse<InputStream> response, int timeout) {
+            this.url = url;
+            this.response = response;
+            this.body = new IdleTimeoutInputStream(response.body(), timeout);
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void disconnect() {
+            try {
+                body.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Fails a read that has waited longer than the timeout for data, as
+     * the client's own timeout only covers the wait for the headers. The
+     * body stream doesn't wake up when interrupted, so it is closed, and
+     * the read is turned into a {@link SocketTimeoutException}, like the
+     * read timeout of {@link java.net.HttpURLConnection}.
+     */
+    private static class IdleTimeoutInputStream extends FilterInputStream {
+        private final int timeout;
+        private volatile boolean timedOut;
+
+        private IdleTimeoutInputStream(InputStream in, int timeout) {
+            super(in);
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ScheduledFuture<?> task = watchdog.schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+            try {
+                return check(super.read());
+            } catch (IOException e) {
+                throw timedOut ? timeout(e) : e;
+            } finally {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ScheduledFuture<?> task = watchdog.schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+            try {
+                return check(super.read(b, off, len));
+            } catch (IOException e) {
+                throw timedOut ? timeout(e) : e;
+            } finally {
+                task.cancel(false);
+            }
+        }
+
+        private void expire() {
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Make sure that the end of a stream that was closed because it
+         * timed out isn't taken for the end of the body.
+         */
+        private int check(int read) throws SocketTimeoutException {
+            if (read == -1 && timedOut) {
+                throw timeout(null);
+            }
+            return read;
+        }
+
+        private SocketTimeoutException timeout(IOException cause) {
+            SocketTimeoutException e = new SocketTimeoutException("Read timed out after " + timeout + " ms");
+            e.initCause(cause);
+            return e;
+        }
+    }
+
+}